@@ -0,0 +1,46 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.entity.VoucherOrder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 订单消费者解析stream消息：BeanUtil.fillBeanWithMap（当前实现）与直接取字段对比
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BeanMapBenchmark {
+
+    private Map<Object, Object> values;
+
+    @Setup
+    public void setup() {
+        // 与秒杀脚本XADD的字段一致
+        values = new HashMap<>();
+        values.put("userId", "1010");
+        values.put("voucherId", "12");
+        values.put("id", "315873849374507009");
+    }
+
+    @Benchmark
+    public VoucherOrder fillBeanWithMap() {
+        return BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+    }
+
+    @Benchmark
+    public VoucherOrder manual() {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(Long.valueOf((String) values.get("id")));
+        voucherOrder.setUserId(Long.valueOf((String) values.get("userId")));
+        voucherOrder.setVoucherId(Long.valueOf((String) values.get("voucherId")));
+        return voucherOrder;
+    }
+}
@@ -0,0 +1,123 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.core.util.ReflectUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CacheClient中缓存值的序列化和反序列化：Hutool JSONUtil（json编解码器）、Jackson与二进制编解码器对比，
+ * logicalExpire 对应 queryWithLogicalExpire 中 RedisData -> JSONObject -> Shop 的两次转换，二进制编解码器只需要一次；
+ * 启动时打印两种格式的字节数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheCodecBenchmark {
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final BinaryCacheCodec binaryCodec = new BinaryCacheCodec();
+
+    private Shop shop;
+    private String json;
+    private String logicalExpireJson;
+    private RedisData redisData;
+    private byte[] binary;
+    private byte[] logicalExpireBinary;
+
+    @Setup
+    public void setup() {
+        shop = new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vmIU_8ZGOT1OjpJmLxG6urQ.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.now())
+                .setUpdateTime(LocalDateTime.now());
+        json = JSONUtil.toJsonStr(shop);
+        redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(30));
+        logicalExpireJson = JSONUtil.toJsonStr(redisData);
+
+        ReflectUtil.setFieldValue(binaryCodec, "jsonCacheCodec", new JsonCacheCodec());
+        binary = binaryCodec.encode(shop);
+        logicalExpireBinary = binaryCodec.encode(redisData);
+        System.out.printf("%nShop: json %d bytes, binary %d bytes; RedisData: json %d bytes, binary %d bytes%n",
+                json.getBytes(StandardCharsets.UTF_8).length, binary.length,
+                logicalExpireJson.getBytes(StandardCharsets.UTF_8).length, logicalExpireBinary.length);
+    }
+
+    @Benchmark
+    public String hutoolSerialize() {
+        return JSONUtil.toJsonStr(shop);
+    }
+
+    @Benchmark
+    public Shop hutoolDeserialize() {
+        return JSONUtil.toBean(json, Shop.class);
+    }
+
+    @Benchmark
+    public Shop hutoolLogicalExpire() {
+        RedisData redisData = JSONUtil.toBean(logicalExpireJson, RedisData.class);
+        return JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
+    }
+
+    @Benchmark
+    public String jacksonSerialize() throws JsonProcessingException {
+        return objectMapper.writeValueAsString(shop);
+    }
+
+    @Benchmark
+    public Shop jacksonDeserialize() throws JsonProcessingException {
+        return objectMapper.readValue(json, Shop.class);
+    }
+
+    @Benchmark
+    public byte[] binarySerialize() {
+        return binaryCodec.encode(shop);
+    }
+
+    @Benchmark
+    public byte[] binarySerializeLogicalExpire() {
+        return binaryCodec.encode(redisData);
+    }
+
+    @Benchmark
+    public Shop binaryDeserialize() {
+        return binaryCodec.decode(binary, Shop.class);
+    }
+
+    @Benchmark
+    public Shop binaryLogicalExpire() {
+        return (Shop) binaryCodec.decodeWithExpire(logicalExpireBinary, Shop.class).getData();
+    }
+}
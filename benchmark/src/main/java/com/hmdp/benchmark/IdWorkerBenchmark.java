@@ -0,0 +1,55 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.core.util.ReflectUtil;
+import com.hmdp.utils.RedisIdWorker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RedisIdWorker三种模式的吞吐量：incr（每个id一次INCR）、segment（号段）、snowflake（本地生成）
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdWorkerBenchmark {
+
+    @Param({"incr", "segment", "snowflake"})
+    private String mode;
+
+    @Param({"1000"})
+    private int segmentSize;
+
+    private RedisStandIn redis;
+
+    private RedisIdWorker redisIdWorker;
+
+    @Setup
+    public void setup() throws IOException {
+        redis = RedisStandIn.start();
+        // 按Spring注入的方式设置字段，再执行@PostConstruct
+        redisIdWorker = new RedisIdWorker();
+        ReflectUtil.setFieldValue(redisIdWorker, "stringRedisTemplate", redis.stringRedisTemplate());
+        ReflectUtil.setFieldValue(redisIdWorker, "mode", mode);
+        ReflectUtil.setFieldValue(redisIdWorker, "segmentSize", segmentSize);
+        ReflectUtil.setFieldValue(redisIdWorker, "prefetchRatio", 0.2);
+        ReflectUtil.setFieldValue(redisIdWorker, "workerLeaseSeconds", 30L);
+        ReflectUtil.setFieldValue(redisIdWorker, "maxBackwardSeconds", 5L);
+        ReflectUtil.invoke(redisIdWorker, "init");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        ReflectUtil.invoke(redisIdWorker, "destroy");
+        redis.stop();
+    }
+
+    @Benchmark
+    public long nextId() {
+        return redisIdWorker.nextId("order");
+    }
+}
@@ -0,0 +1,101 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.core.util.ReflectUtil;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.LocalKeyedLock;
+import com.hmdp.utils.RedisLockClient;
+import com.hmdp.utils.SimpleRedisLock;
+import org.openjdk.jmh.annotations.*;
+import org.redisson.api.RLock;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一次无竞争的加锁+释放锁：SimpleRedisLock（SET NX + Lua释放）、RedisReentrantLock（hash + 发布订阅）与Redisson可重入锁对比，
+ * 每个线程使用不同的锁，只测量锁本身的开销
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LockBenchmark {
+
+    @Param({"simple", "reentrant", "redisson"})
+    private String lock;
+
+    private RedisStandIn redis;
+
+    private RedisMessageListenerContainer container;
+
+    private RedisLockClient redisLockClient;
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class ThreadLock {
+        private ILock simpleLock;
+        private ILock reentrantLock;
+        private RLock redissonLock;
+
+        @Setup
+        public void setup(LockBenchmark benchmark) {
+            String name = "bench:" + benchmark.threads.incrementAndGet();
+            StringRedisTemplate stringRedisTemplate = benchmark.redis.stringRedisTemplate();
+            simpleLock = new SimpleRedisLock(name, stringRedisTemplate, benchmark.redisLockClient);
+            reentrantLock = benchmark.redisLockClient.getLock(name);
+            redissonLock = benchmark.redis.redissonClient().getLock("lock:" + name);
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        redis = RedisStandIn.start();
+        if ("redisson".equals(lock)) {
+            redis.redissonClient();
+        }
+        // 按Spring注入的方式创建RedisLockClient
+        container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redis.stringRedisTemplate().getRequiredConnectionFactory());
+        container.afterPropertiesSet();
+        container.start();
+        redisLockClient = new RedisLockClient();
+        ReflectUtil.setFieldValue(redisLockClient, "stringRedisTemplate", redis.stringRedisTemplate());
+        ReflectUtil.setFieldValue(redisLockClient, "redisMessageListenerContainer", container);
+        ReflectUtil.setFieldValue(redisLockClient, "localLocks", new LocalKeyedLock());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        ReflectUtil.invoke(redisLockClient, "destroy");
+        container.destroy();
+        redis.stop();
+    }
+
+    @Benchmark
+    public boolean lockAndUnlock(ThreadLock threadLock) {
+        boolean success;
+        if ("redisson".equals(lock)) {
+            success = threadLock.redissonLock.tryLock();
+            if (success) {
+                threadLock.redissonLock.unlock();
+            }
+        } else if ("reentrant".equals(lock)) {
+            success = threadLock.reentrantLock.tryLock(10);
+            if (success) {
+                threadLock.reentrantLock.unlock();
+            }
+        } else {
+            success = threadLock.simpleLock.tryLock(10);
+            if (success) {
+                threadLock.simpleLock.unlock();
+            }
+        }
+        return success;
+    }
+}
@@ -0,0 +1,145 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.core.util.ReflectUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.impl.SeckillVoucherServiceImpl;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 订单消费者的吞吐量（订单/秒）：为每个订单加Redisson锁（order-lock-enabled=true）与幂等模式（false）对比
+ * <p>
+ * perOrder 驱动 VoucherOrderServiceImpl.handleVoucherOrder（逐条下单，锁只在这条路径上），
+ * groupCommit 驱动 handleVoucherOrders（组提交，两种模式相同，作为参照）；
+ * 锁使用内嵌Redis上真实的Redisson，数据库用固定往返时间的Mapper代替（每条SQL和事务的BEGIN、COMMIT各一次往返），
+ * 加锁模式下createVoucherOrder多出的一人一单查询也按一次往返计算
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class OrderConsumerBenchmark {
+
+    private static final int BATCH_SIZE = 50;
+
+    @Param({"true", "false"})
+    private boolean orderLockEnabled;
+
+    @Param({"200"})
+    private long dbRoundTripMicros;     // 模拟的数据库往返时间
+
+    private RedisStandIn redis;
+
+    private VoucherOrderServiceImpl voucherOrderService;
+
+    private Method handleVoucherOrder;
+    private Method handleVoucherOrders;
+
+    private final AtomicLong ids = new AtomicLong();
+
+    @Setup
+    public void setup() throws IOException {
+        redis = RedisStandIn.start();
+
+        // 1.按Spring注入的方式创建服务，Mapper为模拟的数据库
+        SeckillVoucherServiceImpl seckillVoucherService = new SeckillVoucherServiceImpl();
+        ReflectUtil.setFieldValue(seckillVoucherService, "baseMapper", mapper(SeckillVoucherMapper.class));
+        voucherOrderService = new VoucherOrderServiceImpl();
+        ReflectUtil.setFieldValue(voucherOrderService, "baseMapper", mapper(VoucherOrderMapper.class));
+        ReflectUtil.setFieldValue(voucherOrderService, "seckillVoucherService", seckillVoucherService);
+        ReflectUtil.setFieldValue(voucherOrderService, "redissonClient", redis.redissonClient());
+        ReflectUtil.setFieldValue(voucherOrderService, "orderLockEnabled", orderLockEnabled);
+        ReflectUtil.setFieldValue(voucherOrderService, "proxy", transactional(voucherOrderService));
+
+        handleVoucherOrder = ReflectUtil.getMethod(VoucherOrderServiceImpl.class, "handleVoucherOrder", VoucherOrder.class);
+        handleVoucherOrders = ReflectUtil.getMethod(VoucherOrderServiceImpl.class, "handleVoucherOrders", List.class);
+        handleVoucherOrder.setAccessible(true);
+        handleVoucherOrders.setAccessible(true);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        redis.stop();
+    }
+
+    @Benchmark
+    public Object perOrder() throws Exception {
+        return handleVoucherOrder.invoke(voucherOrderService, nextOrder());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public Object groupCommit() throws Exception {
+        List<VoucherOrder> voucherOrders = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            voucherOrders.add(nextOrder());
+        }
+        return handleVoucherOrders.invoke(voucherOrderService, voucherOrders);
+    }
+
+    private VoucherOrder nextOrder() {
+        // 每个订单是不同的用户，锁之间没有竞争
+        long id = ids.incrementAndGet();
+        return new VoucherOrder().setId(id).setUserId(id).setVoucherId(1L);
+    }
+
+    private void roundTrip() {
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(dbRoundTripMicros));
+    }
+
+    /**
+     * 模拟的Mapper：每次调用一次往返，写操作影响1行，查询没有结果（每个订单都是新用户）
+     */
+    @SuppressWarnings("unchecked")
+    private <M> M mapper(Class<M> type) {
+        return (M) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.getName().equals("toString") ? type.getSimpleName() : method.invoke(this, args);
+            }
+            roundTrip();
+            switch (method.getName()) {
+                case "insertBatch":
+                    return ((List<?>) args[0]).size();
+                case "selectCount":
+                    return 0;
+                case "selectById":
+                    return null;
+                default:
+                    return 1;
+            }
+        });
+    }
+
+    /**
+     * 模拟@Transactional代理：BEGIN和COMMIT各一次往返
+     */
+    private IVoucherOrderService transactional(IVoucherOrderService target) {
+        return (IVoucherOrderService) Proxy.newProxyInstance(IVoucherOrderService.class.getClassLoader(),
+                new Class<?>[]{IVoucherOrderService.class}, (proxy, method, args) -> {
+                    roundTrip();
+                    try {
+                        return method.invoke(target, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    } finally {
+                        roundTrip();
+                    }
+                });
+    }
+}
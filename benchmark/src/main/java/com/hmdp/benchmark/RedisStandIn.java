@@ -0,0 +1,84 @@
+package com.hmdp.benchmark;
+
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+
+/**
+ * 基准测试使用的本地Redis：默认在6390端口启动内嵌Redis，
+ * 指定 -Dredis.host 时连接已有的Redis（-Dredis.port 默认6379，-Dredis.password 可选）
+ */
+public class RedisStandIn {
+
+    private final String host;
+    private final int port;
+    private final String password;
+
+    private RedisServer server;
+    private LettuceConnectionFactory connectionFactory;
+    private StringRedisTemplate stringRedisTemplate;
+    private RedissonClient redissonClient;
+
+    private RedisStandIn(String host, int port, String password) {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+    }
+
+    public static RedisStandIn start() throws IOException {
+        String host = System.getProperty("redis.host");
+        if (host != null) {
+            return new RedisStandIn(host, Integer.getInteger("redis.port", 6379), System.getProperty("redis.password"));
+        }
+        RedisStandIn standIn = new RedisStandIn("127.0.0.1", Integer.getInteger("redis.port", 6390), null);
+        standIn.server = RedisServer.newRedisServer()
+                .bind(standIn.host)
+                .port(standIn.port)
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .build();
+        standIn.server.start();
+        return standIn;
+    }
+
+    public synchronized StringRedisTemplate stringRedisTemplate() {
+        if (stringRedisTemplate == null) {
+            RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(host, port);
+            if (password != null) {
+                configuration.setPassword(password);
+            }
+            connectionFactory = new LettuceConnectionFactory(configuration);
+            connectionFactory.afterPropertiesSet();
+            stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+            stringRedisTemplate.afterPropertiesSet();
+        }
+        return stringRedisTemplate;
+    }
+
+    public synchronized RedissonClient redissonClient() {
+        if (redissonClient == null) {
+            Config config = new Config();
+            config.useSingleServer().setAddress("redis://" + host + ":" + port).setPassword(password);
+            redissonClient = Redisson.create(config);
+        }
+        return redissonClient;
+    }
+
+    public void stop() throws IOException {
+        if (redissonClient != null) {
+            redissonClient.shutdown();
+        }
+        if (connectionFactory != null) {
+            connectionFactory.destroy();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
@@ -18,6 +19,9 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
     /**
      * 根据id查询商铺信息
      *
@@ -39,6 +43,8 @@ public class ShopController {
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
         shopService.save(shop);
+        // 加入布隆过滤器
+        idBloomFilter.add(IdBloomFilter.SHOP, shop.getId());
         // 返回店铺id
         return Result.ok(shop.getId());
     }
@@ -3,6 +3,7 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import org.springframework.web.bind.annotation.*;
 
@@ -23,6 +24,9 @@ public class VoucherController {
     @Resource
     private IVoucherService voucherService;
 
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
     /**
      * 新增普通券
      * @param voucher 优惠券信息
@@ -45,6 +49,37 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 预热秒杀券：把库存、时间窗口、下单用户从数据库加载到Redis
+     * @param voucherId 秒杀券id
+     * @return 无
+     */
+    @PostMapping("seckill/warm-up/{id}")
+    public Result warmUpSeckillVoucher(@PathVariable("id") Long voucherId) {
+        voucherService.warmUpSeckillVoucher(voucherId);
+        return Result.ok();
+    }
+
+    /**
+     * 秒杀券对账：比对Redis与MySQL中的库存和订单，只读
+     * @param voucherId 秒杀券id
+     * @return 对账结果
+     */
+    @GetMapping("seckill/reconcile/{id}")
+    public Result reconcileSeckillVoucher(@PathVariable("id") Long voucherId) {
+        return seckillVoucherService.reconcile(voucherId, false);
+    }
+
+    /**
+     * 秒杀券对账并修复：把MySQL中已有订单、Redis中缺失的用户补写到Redis
+     * @param voucherId 秒杀券id
+     * @return 对账结果
+     */
+    @PostMapping("seckill/reconcile/{id}/repair")
+    public Result repairSeckillVoucher(@PathVariable("id") Long voucherId) {
+        return seckillVoucherService.reconcile(voucherId, true);
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
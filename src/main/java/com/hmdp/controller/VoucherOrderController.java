@@ -4,10 +4,8 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -15,6 +13,8 @@ import javax.annotation.Resource;
 @RequestMapping("/voucher-order")
 public class VoucherOrderController {
 
+    private static final long MAX_AWAIT_MILLIS = 30000L;    // 长轮询最长等待时间
+
     @Resource
     private IVoucherOrderService voucherOrderService;
 
@@ -28,4 +28,38 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询订单消息队列的积压和消费者处理量
+     *
+     * @return 各分片的length、pending、lag，以及本节点的处理量
+     */
+    @GetMapping("metrics")
+    public Result queryStreamMetrics() {
+        return voucherOrderService.queryStreamMetrics();
+    }
+
+    /**
+     * 查询秒杀订单的处理状态
+     *
+     * @param orderId 秒杀下单返回的订单id
+     * @return SUCCESS、FAILED 或 PENDING
+     */
+    @GetMapping("{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    /**
+     * 长轮询等待秒杀订单的处理结果，订单写入或失败后立即返回，超时返回 PENDING
+     *
+     * @param orderId 秒杀下单返回的订单id
+     * @param timeout 最长等待时间（毫秒）
+     * @return SUCCESS、FAILED 或 PENDING
+     */
+    @GetMapping("{id}/status/await")
+    public DeferredResult<Result> awaitOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "timeout", defaultValue = "10000") Long timeout) {
+        return voucherOrderService.awaitOrderStatus(orderId, Math.min(timeout, MAX_AWAIT_MILLIS));
+    }
 }
@@ -0,0 +1,55 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 秒杀券Redis与MySQL对账结果
+ */
+@Data
+public class SeckillReconcileResult {
+    private Long voucherId;
+    /**
+     * Redis中的剩余库存
+     */
+    private Long redisStock;
+    /**
+     * MySQL中的剩余库存
+     */
+    private Long dbStock;
+    /**
+     * Redis中已下单的用户数
+     */
+    private Long redisBuyers = 0L;
+    /**
+     * MySQL中的订单数（包括超时取消的订单，取消时库存已归还，下单资格仍然保留）
+     */
+    private Long dbOrders = 0L;
+    /**
+     * Redis中已下单、MySQL中没有订单的用户数（可能是还在消息队列中的订单，也可能是丢失的消息）
+     */
+    private Long missingInDb = 0L;
+    /**
+     * MySQL中有订单、Redis中没有记录的用户数
+     */
+    private Long missingInRedis = 0L;
+    /**
+     * 已补写到Redis的用户数
+     */
+    private Long repaired = 0L;
+    /**
+     * 库存偏差：(Redis库存 + Redis下单数) - (MySQL库存 + MySQL订单数)，正常应为0
+     */
+    private Long stockDrift;
+    /**
+     * 库存有偏差时的说明，库存偏差只报告、不自动修复
+     */
+    private String stockDriftNote;
+    /**
+     * 有偏差的用户id样例
+     */
+    private List<Long> missingInDbSample = new ArrayList<>();
+    private List<Long> missingInRedisSample = new ArrayList<>();
+}
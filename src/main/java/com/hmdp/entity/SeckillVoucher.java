@@ -37,6 +37,11 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * Redis中库存拆分的桶数，创建后不能修改
+     */
+    private Integer stockBuckets;
+
     /**
      * 创建时间
      */
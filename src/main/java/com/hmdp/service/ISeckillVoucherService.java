@@ -6,4 +6,20 @@ import com.baomidou.mybatisplus.extension.service.IService;
 
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    /**
+     * 对账：逐批比对Redis中的库存、下单用户与MySQL中的库存、订单，库存偏差只报告不修复
+     *
+     * @param voucherId 秒杀券id
+     * @param repair    是否把MySQL中有订单、Redis中缺失的用户补写到Redis
+     * @return 对账结果
+     */
+    Result reconcile(Long voucherId, boolean repair);
+
+    /**
+     * 查询秒杀券在Redis中的库存桶数，桶数创建后不变，本地缓存
+     *
+     * @param voucherId 秒杀券id
+     * @return 库存桶数，秒杀券不存在时返回0
+     */
+    int queryStockBuckets(Long voucherId);
 }
@@ -3,6 +3,12 @@ package com.hmdp.service;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * <p>
@@ -22,10 +28,61 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
      */
     Result seckillVoucher(Long voucherId);
 
+    /**
+     * 查询秒杀订单的处理状态：SUCCESS、FAILED 或 PENDING（还在队列中），只能查询当前用户的订单
+     *
+     * @param orderId
+     * @return
+     */
+    Result queryOrderStatus(Long orderId);
+
+    /**
+     * 查询订单消息队列的积压情况（长度、pending、lag）和本节点消费者的处理量
+     *
+     * @return
+     */
+    Result queryStreamMetrics();
+
+    /**
+     * 异步等待秒杀订单的处理结果，超时返回 PENDING，等待期间不占用Tomcat线程，只能等待当前用户的订单
+     *
+     * @param orderId
+     * @param timeoutMillis
+     * @return
+     */
+    DeferredResult<Result> awaitOrderStatus(Long orderId, long timeoutMillis);
+
     /**
      * 创建优惠券订单
      * @param voucherOrder
-     * @return
+     * @return true代表订单已写入数据库，false代表没有创建订单
+     */
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 批量创建优惠券订单（组提交）：按券合并扣减库存，一条多值insert写入全部订单
+     * @param voucherOrders
+     */
+    void createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消仍未支付的订单，并归还数据库中的库存
+     * @param orderIds 到期的订单id
+     * @return 本次取消的订单，已支付、已取消或还没有写入数据库的订单不在其中
+     */
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
+
+    /**
+     * 查询还在处理中、没有写入数据库的订单：在订单消息队列中（未投递或pending）或某个节点的本地订单日志中
+     * @param voucherOrders 订单，需要id和voucherId
+     * @return 处理中的订单id
+     */
+    Set<Long> queryQueuedOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 统计订单消息队列中（未投递或pending）各秒杀券还没有写入数据库的订单数，这些订单已经扣减了Redis库存、还没有扣减数据库库存
+     * @param voucherIds 秒杀券id
+     * @return 秒杀券id -> 订单数，没有订单的券不在其中
      */
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    Map<Long, Long> countQueuedOrders(Collection<Long> voucherIds);
 }
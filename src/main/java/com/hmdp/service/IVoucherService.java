@@ -17,4 +17,21 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    /**
+     * 预热所有未结束的秒杀券：用管道把库存、时间窗口、下单用户从数据库加载到Redis
+     */
+    void warmUpSeckillVouchers();
+
+    /**
+     * 预热一张秒杀券
+     * @param voucherId
+     */
+    void warmUpSeckillVoucher(Long voucherId);
+
+    /**
+     * 异步预热一张秒杀券，同一张券正在预热时忽略
+     * @param voucherId
+     */
+    void warmUpSeckillVoucherAsync(Long voucherId);
 }
@@ -1,19 +1,311 @@
 package com.hmdp.service.impl;
 
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillReconcileResult;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisLockClient;
+import com.hmdp.utils.SeckillKeys;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+
 
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
  * </p>
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    private static final int RECONCILE_BATCH_SIZE = 500;    // 每批比对的用户数/订单数
+    private static final int SAMPLE_SIZE = 100;     // 结果中最多返回的偏差用户id数量
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private RedisLockClient redisLockClient;
+
+    @Value("${hmdp.seckill.reconcile.interval:0}")
+    private long reconcileIntervalSeconds;  // 定时对账的间隔（秒），0表示关闭
+
+    @Value("${hmdp.seckill.reconcile.batch-size:10}")
+    private int reconcileBatchSize;     // 每轮对账的秒杀券数
+
+    @Value("${hmdp.seckill.reconcile.repair:true}")
+    private boolean reconcileRepair;    // 定时对账时是否补写Redis中缺失的下单用户
+
+    private ScheduledExecutorService reconcileExecutor;     // 执行定时对账的线程
+
+    private long reconcileCursor;   // 上一轮最后对账的券id，只在对账线程中访问
+
+    private final Map<Long, Integer> stockBuckets = new ConcurrentHashMap<>();  // 秒杀券的库存桶数，创建后不变
+
+    @PostConstruct
+    private void init() {
+        if (reconcileIntervalSeconds <= 0) {
+            return;
+        }
+        reconcileExecutor = Executors.newSingleThreadScheduledExecutor();
+        reconcileExecutor.scheduleWithFixedDelay(this::reconcileActiveVouchers,
+                reconcileIntervalSeconds, reconcileIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (reconcileExecutor != null) {
+            reconcileExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    public Result reconcile(Long voucherId, boolean repair) {
+        SeckillVoucher seckillVoucher = getById(voucherId);
+        if (seckillVoucher == null) {
+            return Result.fail("秒杀券不存在！");
+        }
+        SeckillReconcileResult result = new SeckillReconcileResult();
+        result.setVoucherId(voucherId);
+        result.setDbStock(seckillVoucher.getStock().longValue());
+        int buckets = stockBuckets(seckillVoucher);
+        result.setRedisStock(queryRedisStock(voucherId, buckets));
+
+        // 1.SSCAN遍历Redis中各个桶的下单用户，逐批检查MySQL中是否有订单
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            reconcileRedisBuyers(voucherId, seckillKeys.orderKey(voucherId, bucket), result);
+        }
+
+        // 2.按主键分页（keyset）遍历MySQL中的订单，逐批检查用户的主桶中是否有下单记录
+        reconcileDbOrders(voucherId, buckets, repair, result);
+
+        // 3.计算库存偏差
+        if (result.getRedisStock() != null) {
+            result.setStockDrift(result.getRedisStock() + result.getRedisBuyers()
+                    - result.getDbStock() - result.getDbOrders());
+        }
+        if (result.getStockDrift() != null && result.getStockDrift() != 0) {
+            // 各项数据是在秒杀进行中分别读取的，不是同一时刻的快照（订单在队列和数据库之间转移、超时取消先改数据库再归还Redis库存），
+            // 按偏差直接修改Redis库存可能造成超卖，只报告，由人工在活动结束、队列处理完之后确认
+            result.setStockDriftNote("库存偏差只报告不自动修复：对账期间订单仍在队列、数据库和Redis之间转移，偏差可能是暂时的");
+        }
+        if (result.getMissingInDb() > 0 || result.getMissingInRedis() > 0
+                || (result.getStockDrift() != null && result.getStockDrift() != 0)) {
+            log.warn("秒杀券对账发现偏差：{}", result);
+        }
+        return Result.ok(result);
+    }
+
+    /**
+     * 定时对账：每轮按券id分页（keyset）取下一批未结束的秒杀券，全部对账一遍后从头开始，
+     * 多个节点之间用Redis锁保证同一时刻只有一个节点在对账
+     */
+    private void reconcileActiveVouchers() {
+        // 看门狗锁：一轮对账超过间隔时锁被续期，不会有第二个节点同时对账
+        ILock lock = redisLockClient.getLock("seckill:reconcile");
+        try {
+            if (!lock.tryLock(0, -1, TimeUnit.SECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            // 1.下一批未结束的秒杀券 WHERE end_time > now AND voucher_id > cursor ORDER BY voucher_id LIMIT n
+            List<SeckillVoucher> vouchers = query().select("voucher_id")
+                    .gt("end_time", LocalDateTime.now()).gt("voucher_id", reconcileCursor)
+                    .orderByAsc("voucher_id")
+                    .last("LIMIT " + reconcileBatchSize)
+                    .list();
+            if (vouchers.isEmpty()) {
+                reconcileCursor = 0;
+                return;
+            }
+            reconcileCursor = vouchers.get(vouchers.size() - 1).getVoucherId();
+            // 2.逐张对账，单张失败不影响其他券
+            for (SeckillVoucher voucher : vouchers) {
+                try {
+                    reconcile(voucher.getVoucherId(), reconcileRepair);
+                } catch (Exception e) {
+                    log.error("秒杀券对账异常，voucherId={}", voucher.getVoucherId(), e);
+                }
+            }
+        } catch (Exception e) {
+            log.error("秒杀券定时对账异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int queryStockBuckets(Long voucherId) {
+        Integer buckets = stockBuckets.get(voucherId);
+        if (buckets != null) {
+            return buckets;
+        }
+        // 不存在的券不缓存，创建后可以立即查到
+        SeckillVoucher seckillVoucher = getById(voucherId);
+        return seckillVoucher == null ? 0 : stockBuckets(seckillVoucher);
+    }
+
+    private int stockBuckets(SeckillVoucher seckillVoucher) {
+        Integer buckets = seckillVoucher.getStockBuckets();
+        int k = buckets == null || buckets < 1 ? 1 : buckets;
+        stockBuckets.put(seckillVoucher.getVoucherId(), k);
+        return k;
+    }
+
+    /**
+     * 各个桶的库存之和，所有桶都不在Redis中时返回null
+     */
+    private Long queryRedisStock(Long voucherId, int buckets) {
+        List<String> keys = new ArrayList<>(buckets);
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            keys.add(seckillKeys.stockKey(voucherId, bucket));
+        }
+        // 各个桶可能在不同的slot，逐个GET（管道）而不是MGET
+        List<Object> stocks = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            keys.forEach(conn::get);
+            return null;
+        });
+        Long total = null;
+        for (Object stock : stocks) {
+            if (stock != null) {
+                total = (total == null ? 0 : total) + Long.parseLong(stock.toString());
+            }
+        }
+        return total;
+    }
+
+    private void reconcileRedisBuyers(Long voucherId, String key, SeckillReconcileResult result) {
+        ScanOptions options = ScanOptions.scanOptions().count(RECONCILE_BATCH_SIZE).build();
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(key, options)) {
+            List<Long> batch = new ArrayList<>(RECONCILE_BATCH_SIZE);
+            while (cursor.hasNext()) {
+                batch.add(Long.valueOf(cursor.next()));
+                if (batch.size() == RECONCILE_BATCH_SIZE) {
+                    checkBuyersInDb(voucherId, batch, result);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                checkBuyersInDb(voucherId, batch, result);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void checkBuyersInDb(Long voucherId, List<Long> userIds, SeckillReconcileResult result) {
+        // SSCAN可能返回重复元素，去重后再比对
+        Set<Long> buyers = new HashSet<>(userIds);
+        result.setRedisBuyers(result.getRedisBuyers() + buyers.size());
+        // 走(user_id, voucher_id)唯一索引，超时取消的订单仍然占用该用户的下单资格，Redis中保留下单记录
+        Set<Long> ordered = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                        .select("user_id")
+                        .eq("voucher_id", voucherId).in("user_id", buyers))
+                .stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        for (Long userId : buyers) {
+            if (!ordered.contains(userId)) {
+                result.setMissingInDb(result.getMissingInDb() + 1);
+                addSample(result.getMissingInDbSample(), userId);
+            }
+        }
+    }
+
+    private void reconcileDbOrders(Long voucherId, int buckets, boolean repair, SeckillReconcileResult result) {
+        long lastId = 0;
+        while (true) {
+            // 1.WHERE voucher_id = ? AND id > lastId ORDER BY id LIMIT n，不用offset，不锁表
+            List<VoucherOrder> orders = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId).gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + RECONCILE_BATCH_SIZE));
+            if (orders.isEmpty()) {
+                return;
+            }
+            result.setDbOrders(result.getDbOrders() + orders.size());
+            lastId = orders.get(orders.size() - 1).getId();
+
+            // 2.管道批量SISMEMBER，用户的下单资格在主桶中
+            List<String> keys = new ArrayList<>(orders.size());
+            orders.forEach(order -> keys.add(
+                    seckillKeys.orderKey(voucherId, seckillKeys.homeBucket(order.getUserId(), buckets))));
+            List<Object> members = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (int i = 0; i < orders.size(); i++) {
+                    conn.sIsMember(keys.get(i), orders.get(i).getUserId().toString());
+                }
+                return null;
+            });
+
+            // 3.记录Redis中缺失的用户，按需补写
+            Map<String, List<String>> missing = new HashMap<>();
+            int missingCount = 0;
+            for (int i = 0; i < orders.size(); i++) {
+                if (!Boolean.TRUE.equals(members.get(i))) {
+                    Long userId = orders.get(i).getUserId();
+                    missing.computeIfAbsent(keys.get(i), key -> new ArrayList<>()).add(userId.toString());
+                    missingCount++;
+                    addSample(result.getMissingInRedisSample(), userId);
+                }
+            }
+            result.setMissingInRedis(result.getMissingInRedis() + missingCount);
+            if (repair && !missing.isEmpty()) {
+                missing.forEach((key, userIds) -> stringRedisTemplate.opsForSet().add(key, userIds.toArray(new String[0])));
+                result.setRepaired(result.getRepaired() + missingCount);
+            }
+
+            if (orders.size() < RECONCILE_BATCH_SIZE) {
+                return;
+            }
+        }
+    }
+
+    private static void addSample(List<Long> sample, Long userId) {
+        if (sample.size() < SAMPLE_SIZE) {
+            sample.add(userId);
+        }
+    }
 }
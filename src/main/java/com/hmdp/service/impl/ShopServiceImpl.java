@@ -1,10 +1,6 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
@@ -13,18 +9,15 @@ import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.data.geo.*;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.TimeoutUtils;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 
-import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -51,18 +44,13 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      */
     @Override
     public Result queryShopById(Long id) {
-        // 缓存穿透
-        // Shop shop = queryWithPassThrough(id);
-
         // 封装后的缓存穿透
         // Shop shop = cacheClient
         //         .queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
-        // 互斥锁解决缓存击穿
-        // Shop shop = queryWithMutex(id);
-
-        // 逻辑过期解决缓存击穿
-        // Shop shop = queryWithLogicalExpire(id);
+        // 封装后的互斥锁解决缓存击穿
+        // Shop shop = cacheClient
+        //         .queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         // 封装后的逻辑过期解决缓存击穿
         Shop shop = cacheClient
@@ -76,171 +64,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     public static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10); // 线程池
 
-    public Shop queryWithLogicalExpire(Long id) {  // 逻辑过期解决缓存击穿
-        String key = CACHE_SHOP_KEY + id;
-
-        // 1.从redis中查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        // 2.若redis缓存中不存在商铺信息，则直接返回 【前提场景是redis缓存中一定有数据，如做活动时访问热点数据】
-        if (StrUtil.isBlank(shopJson)) {
-            return null;
-        }
-
-        // 3.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        // RedisData类中的data属性是Object类型的，反序列化后要强转为JSONObject类
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-
-        // 4.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 4.1 未过期，直接返回店铺信息
-            return shop;
-        }
-
-        // 4.2 已过期，需要缓存重建
-        // 5.缓存重建
-        // 5.1 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-
-        // 5.2 判断是否获取锁成功
-        if (isLock) {
-            // 5.3 获取成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 重建缓存
-                    this.saveShop2Redis(id, 20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // ※释放锁
-                    unLock(lockKey);
-                }
-            });
-        }
-
-        // 5.4 获取失败，返回过期的店铺信息
-        return shop;
-    }
-
-    public Shop queryWithPassThrough(Long id) {  // 缓存穿透
-        String key = CACHE_SHOP_KEY + id;
-
-        // 1.从redis中查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        // 2.若redis缓存中存在商铺信息，则直接返回
-        if (StrUtil.isNotBlank(shopJson)) {
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-
-        // 判断命中的是否是空值
-        if (shopJson != null) {   // 命中的是空字符串
-            // 返回一个错误信息
-            return null;
-        }
-
-        // 3.若redis缓存中不存在商铺信息，则在数据库中查询商铺信息，并添加到redis缓存中
-        Shop shop = getById(id);    // 调用 MyBatis Plus 的api
-
-        // 4.不存在，返回错误
-        if (shop == null) {
-            // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            // 返回错误信息
-            return null;
-        }
-
-        // 5.存在，写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
-        // 6.返回
-        return shop;
-    }
-
-    public Shop queryWithMutex(Long id) {  // 互斥锁解决缓存击穿
-        String key = CACHE_SHOP_KEY + id;
-
-        // 1.从redis中查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        // 2.若redis缓存中存在商铺信息，则直接返回
-        if (StrUtil.isNotBlank(shopJson)) {
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-
-        // 判断命中的是否是空值
-        if (shopJson != null) {   // 命中的是空字符串[穿透的结果]
-            // 返回一个错误信息
-            return null;
-        }
-        // 3.实现缓存重建
-        // 3.1 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            // 3.2 判断是否获取成功
-            if (!isLock) {
-                // 3.3 失败，则休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-
-            // 3.4 成功，在数据库中查询商铺信息
-            shop = getById(id); // 调用 MyBatis Plus 的api
-            // 模拟重建的延时
-            Thread.sleep(200);
-
-            // 4.不存在，返回错误
-            if (shop == null) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
-                return null;
-            }
-
-            // 5.存在，写入redis
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 6.释放互斥锁
-            unLock(lockKey);
-        }
-
-        // 7.返回
-        return shop;
-    }
-
-
-    private boolean tryLock(String key) {
-        // 使用redis的 setnx 方式实现互斥锁
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
-
-    private void unLock(String key) {
-        // 释放互斥锁
-        stringRedisTemplate.delete(key);
-    }
-
-
     public void saveShop2Redis(Long id, Long expireSeconds) {
         // 1.查询店铺数据
         Shop shop = getById(id);
 
-        // 2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));    // 设置逻辑过期时间
-
-        // 3.写入Redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        // 2.封装逻辑过期时间，按配置的编解码器写入Redis
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 
 
@@ -256,8 +85,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 1.更新数据库
         updateById(shop);
 
-        // 2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 2.删除缓存，同时通知所有节点删除本地一级缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 
@@ -1,35 +1,79 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillOrderJournal;
+import com.hmdp.utils.SeckillOrderMetrics;
+import com.hmdp.utils.SeckillOrderResults;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillSoldOutCache;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.CannotCreateTransactionException;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLTransientConnectionException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_JOURNAL_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ;
+import static com.hmdp.utils.SeckillOrderResults.FAILED;
+import static com.hmdp.utils.SeckillOrderResults.PENDING;
+import static com.hmdp.utils.SeckillOrderResults.SUCCESS;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
 
 /**
  * 服务实现类
@@ -41,6 +85,9 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    @Resource
+    private IVoucherService voucherService;
+
     @Resource
     private RedisIdWorker redisIdWorker;
 
@@ -50,6 +97,23 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Resource
+    private SeckillOrderResults seckillOrderResults;
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
+    @Resource
+    private SeckillOrderMetrics seckillOrderMetrics;
+
+    @Resource
+    private SeckillOrderJournal seckillOrderJournal;
+
+    private static final int STREAM_SCAN_PAGE_SIZE = 1000;  // 扫描stream查找订单时每页的消息数
+
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
     static {
@@ -58,28 +122,232 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
+    private static final DefaultRedisScript<Long> SECKILL_BUCKET_SCRIPT;
+
+    static {
+        SECKILL_BUCKET_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_BUCKET_SCRIPT.setLocation(new ClassPathResource("seckillbucket.lua"));
+        SECKILL_BUCKET_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> ACK_DEL_SCRIPT;
+
+    static {
+        ACK_DEL_SCRIPT = new DefaultRedisScript<>();
+        ACK_DEL_SCRIPT.setLocation(new ClassPathResource("ackdel.lua"));
+        ACK_DEL_SCRIPT.setResultType(Long.class);
+    }
+
     // 阻塞队列，存放订单信息
     // private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();  // 处理生成订单的线程池
+    private ExecutorService seckillOrderExecutor;  // 处理生成订单的线程池，每个线程是消费者组中的一个消费者
+
+    @Value("${hmdp.seckill.node-id:}")
+    private String nodeId;  // 节点标识，用于生成本节点唯一的消费者名称
+
+    @Value("${hmdp.seckill.consumer-count:4}")
+    private int consumerCount;  // 本节点的消费者数量
+
+    @Value("${hmdp.seckill.batch-size:50}")
+    private int batchSize;  // 每次XREADGROUP读取的最大消息数
+
+    @Value("${hmdp.seckill.order-lock-enabled:false}")
+    private boolean orderLockEnabled;   // 是否在消费者中为每个订单加Redisson锁，默认关闭（幂等模式）
+
+    @Resource
+    private SeckillKeys seckillKeys;    // 订单消息队列的分片，stream.orders:{0} ~ stream.orders:{n-1}
+
+    private List<String> streamKeys;    // 所有分片的key
+
+    @Value("${hmdp.seckill.pending-idle:30}")
+    private long pendingIdleSeconds;    // pending-list中的消息空闲超过该时间（秒）才会被恢复任务认领
+
+    @Value("${hmdp.seckill.max-deliveries:5}")
+    private long maxDeliveries;     // 投递次数上限，达到后最后尝试一次，仍失败则转入死信队列
+
+    @Value("${hmdp.seckill.recovery-interval:5}")
+    private long recoveryIntervalSeconds;   // 恢复任务的执行间隔（秒）
+
+    private ScheduledExecutorService recoveryExecutor;  // 执行pending-list恢复任务的线程
+
+    @Value("${hmdp.seckill.stream-max-backlog:100000}")
+    private long streamMaxBacklog;  // 每个分片中未处理完的消息数上限，超过后秒杀脚本直接返回"繁忙"，0表示不限制
+
+    @Value("${hmdp.seckill.shutdown-timeout:30}")
+    private long shutdownTimeoutSeconds;    // 停机时等待消费者处理完当前批次的最长时间（秒）
+
+    @Value("${hmdp.seckill.journal.replay-batch-size:500}")
+    private int replayBatchSize;    // 回放本地订单日志时每个事务写入的订单数
+
+    @Value("${hmdp.seckill.journal.replay-interval:1}")
+    private long replayIntervalSeconds;     // 回放任务的执行间隔（秒）
+
+    @Value("${hmdp.seckill.pay-timeout:900}")
+    private long payTimeoutSeconds;     // 未支付订单的超时时间（秒），超时后自动取消并归还库存，0表示不自动取消
+
+    private volatile boolean running = true;    // 停机时置为false，消费者处理完当前批次后不再读取新消息
+
+    public VoucherOrderServiceImpl() {
+    }
+
+    /**
+     * 不经过Spring，只注入消费者写入订单、本地日志和ACK需要的依赖
+     */
+    VoucherOrderServiceImpl(IVoucherOrderService proxy, StringRedisTemplate stringRedisTemplate,
+                            SeckillOrderResults seckillOrderResults, SeckillOrderMetrics seckillOrderMetrics,
+                            SeckillOrderJournal seckillOrderJournal) {
+        this.proxy = proxy;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillOrderResults = seckillOrderResults;
+        this.seckillOrderMetrics = seckillOrderMetrics;
+        this.seckillOrderJournal = seckillOrderJournal;
+    }
 
     @PostConstruct  // 在当前类初始化完毕后执行 [因为秒杀相关的业务随时可能发生，需要尽早初始化]
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());   // 线程池执行生成订单的任务
+        if (StrUtil.isBlank(nodeId)) {
+            // 未配置时使用 进程号@主机名，保证同一个消费者组中各节点的消费者名称不重复
+            nodeId = ManagementFactory.getRuntimeMXBean().getName();
+        }
+        // 1.创建每个分片的消费者组 XGROUP CREATE stream.orders:{n} g1 0 MKSTREAM
+        streamKeys = new ArrayList<>(seckillKeys.shards());
+        for (int i = 0; i < seckillKeys.shards(); i++) {
+            String streamKey = seckillKeys.streamKey(i);
+            streamKeys.add(streamKey);
+            createGroupIfAbsent(streamKey);
+        }
+        // 2.启动消费者，每个消费者负责一部分分片
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount);
+        for (int i = 0; i < consumerCount; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(nodeId + "-c" + i, shardsOf(i)));   // 线程池执行生成订单的任务
+        }
+        // 3.定时恢复pending-list中空闲超时的消息
+        recoveryExecutor = Executors.newSingleThreadScheduledExecutor();
+        recoveryExecutor.scheduleWithFixedDelay(new PendingOrderRecovery(nodeId + "-recovery"),
+                recoveryIntervalSeconds, recoveryIntervalSeconds, TimeUnit.SECONDS);
+        // 4.开启本地订单日志时，定时把日志中的订单回放到数据库
+        if (seckillOrderJournal.isEnabled()) {
+            recoveryExecutor.scheduleWithFixedDelay(new JournalReplayer(),
+                    replayIntervalSeconds, replayIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy  // 在Redis连接和数据源关闭之前执行
+    private void destroy() {
+        // 1.通知消费者和恢复任务停止，不再读取新消息
+        running = false;
+        recoveryExecutor.shutdown();
+        seckillOrderExecutor.shutdown();
+        // 2.等待正在处理的批次完成并ACK（阻塞读取最多2秒就会返回）
+        try {
+            if (!seckillOrderExecutor.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)
+                    || !recoveryExecutor.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+                log.warn("订单消费者未能在{}秒内停止，未ACK的消息将由其他节点恢复", shutdownTimeoutSeconds);
+                seckillOrderExecutor.shutdownNow();
+                recoveryExecutor.shutdownNow();
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // 3.注销本节点的消费者，仍有pending消息的消费者保留，由其他节点空闲超时后认领
+        for (String streamKey : streamKeys) {
+            try {
+                removeIdleConsumers(streamKey);
+            } catch (Exception e) {
+                log.error("注销消费者异常，stream={}", streamKey, e);
+            }
+        }
+        log.info("订单消费者已停止，node={}", nodeId);
+    }
+
+    private void removeIdleConsumers(String streamKey) {
+        // XPENDING stream.orders:{n} g1 得到每个消费者的pending数量
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, SECKILL_ORDER_GROUP);
+        Map<String, Long> pendingPerConsumer = summary == null
+                ? Collections.emptyMap() : summary.getPendingMessagesPerConsumer();
+        List<String> consumerNames = new ArrayList<>(consumerCount + 1);
+        for (int i = 0; i < consumerCount; i++) {
+            if (shardsOf(i).contains(streamKey)) {
+                consumerNames.add(nodeId + "-c" + i);
+            }
+        }
+        consumerNames.add(nodeId + "-recovery");
+        for (String consumerName : consumerNames) {
+            Long pending = pendingPerConsumer.get(consumerName);
+            if (pending != null && pending > 0) {
+                log.warn("消费者{}仍有{}条pending消息，保留，stream={}", consumerName, pending, streamKey);
+                continue;
+            }
+            // XGROUP DELCONSUMER stream.orders:{n} g1 consumer
+            stringRedisTemplate.opsForStream().deleteConsumer(streamKey, Consumer.from(SECKILL_ORDER_GROUP, consumerName));
+        }
+    }
+
+    private void createGroupIfAbsent(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> ((StringRedisConnection) connection)
+                    .xGroupCreate(streamKey, ReadOffset.from("0"), SECKILL_ORDER_GROUP, true));
+        } catch (Exception e) {
+            // 消费者组已存在时Redis返回BUSYGROUP，忽略即可
+            if (!StrUtil.contains(ExceptionUtil.getRootCauseMessage(e), "BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 分配消费者负责的分片：消费者数不少于分片数时，每个消费者负责一个分片（多个消费者可共享同一分片）；
+     * 否则每个消费者轮流分到多个分片
+     */
+    private List<String> shardsOf(int consumerIndex) {
+        List<String> keys = new ArrayList<>();
+        int streamShards = streamKeys.size();
+        if (consumerCount >= streamShards) {
+            keys.add(streamKeys.get(consumerIndex % streamShards));
+            return keys;
+        }
+        for (int i = consumerIndex; i < streamShards; i += consumerCount) {
+            keys.add(streamKeys.get(i));
+        }
+        return keys;
+    }
+
+    /**
+     * 优惠券的订单可能进入的分片：每个库存桶的订单进入桶所在的分片，不分桶时只有一个分片
+     */
+    private Set<String> streamKeysOf(Long voucherId) {
+        Set<String> keys = new LinkedHashSet<>();
+        for (int shard : seckillKeys.shardsOf(voucherId, Math.max(seckillVoucherService.queryStockBuckets(voucherId), 1))) {
+            keys.add(streamKeys.get(shard));
+        }
+        return keys;
     }
 
     private class VoucherOrderHandler implements Runnable {  // 执行生成订单的任务
 
-        String queueName = "stream.orders";     // 消息队列的名称
+        private final Consumer consumer;    // 当前线程对应的消费者
+
+        private final StreamOffset<String>[] offsets;    // 读取各分片中未消费的消息
+
+        @SuppressWarnings("unchecked")
+        VoucherOrderHandler(String consumerName, List<String> keys) {
+            this.consumer = Consumer.from(SECKILL_ORDER_GROUP, consumerName);
+            this.offsets = keys.stream()
+                    .map(key -> StreamOffset.create(key, ReadOffset.lastConsumed()))
+                    .toArray(StreamOffset[]::new);
+        }
 
         @Override
         public void run() {
-            while (true) {
+            while (running) {
                 try {
-                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders > (最近一条未消费的消息)
+                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 consumer COUNT batchSize BLOCK 2000 STREAMS stream.orders:{n} ... > ...
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                            consumer,
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                            offsets
                     );
 
                     // 2.判断消息获取是否成功
@@ -88,62 +356,340 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                         continue;
                     }
 
-                    // 3.解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();     // 消息队列中存储的键值对集合
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-
-                    // 4.如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-
-                    // 5.ACK确认 SACK stream.orders g1 id     【record.getId() 得到的是消息id】
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    // 3.处理这一批订单并统一ACK，停机时也会处理完已经读到的这一批
+                    handleRecords(list);
                 } catch (Exception e) {
+                    // 没有ACK的消息留在pending-list中，空闲超时后由PendingOrderRecovery认领重试
                     log.error("处理订单异常", e);
-                    // 如果在处理消息的过程中发生异常，就没有进行ACK确认，消息就会进入pendingList，就要去pendingList尝试取出消息进行处理
-                    handlePendingList();
                 }
             }
         }
+    }
+
+    /**
+     * pending-list恢复任务：认领所有消费者（包括已经宕机的节点）中空闲超时的消息重新处理，
+     * 投递次数达到上限且仍然失败的消息转入死信队列 stream.orders.dlq
+     */
+    class PendingOrderRecovery implements Runnable {
+
+        private final String consumerName;  // 认领消息使用的消费者名称
+
+        PendingOrderRecovery(String consumerName) {
+            this.consumerName = consumerName;
+        }
 
-        private void handlePendingList() {
-            while (true) {
+        @Override
+        public void run() {
+            for (String streamKey : streamKeys) {
+                if (!running) {
+                    return;
+                }
                 try {
-                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.orders 0
-                    // 读取PendingList中的消息不需要阻塞，并且0表示读取pending-list
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
+                    recover(streamKey);
+                } catch (Exception e) {
+                    log.error("恢复pending-list订单异常，stream={}", streamKey, e);
+                }
+            }
+        }
 
-                    // 2.判断消息获取是否成功
-                    if(list == null || list.isEmpty()){
-                        // 如果获取失败，说明pending-list中没有消息，结束循环
-                        break;
+        private void recover(String streamKey) {
+            Duration minIdle = Duration.ofSeconds(pendingIdleSeconds);
+            Range<String> range = Range.unbounded();
+            while (running) {
+                // 1.分页扫描pending-list XPENDING stream.orders:{n} g1 start + batchSize
+                PendingMessages pending = stringRedisTemplate.opsForStream()
+                        .pending(streamKey, SECKILL_ORDER_GROUP, range, batchSize);
+                if (pending.isEmpty()) {
+                    return;
+                }
+
+                // 2.筛选空闲超时的消息，按投递次数分为重试和最后一次尝试两类
+                List<RecordId> retry = new ArrayList<>();
+                List<RecordId> last = new ArrayList<>();
+                for (PendingMessage message : pending) {
+                    if (message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) < 0) {
+                        continue;
                     }
+                    (message.getTotalDeliveryCount() >= maxDeliveries ? last : retry).add(message.getId());
+                }
 
-                    // 3.解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();     // 消息队列中存储的键值对集合
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+                // 3.XCLAIM认领后处理，min-idle保证多个节点同时恢复时一条消息只会被一个节点认领
+                List<StringRecord> claimed = claim(streamKey, retry, minIdle);
+                if (!claimed.isEmpty()) {
+                    log.info("认领pending-list订单{}条，stream={}", claimed.size(), streamKey);
+                    handleRecords(claimed);
+                }
+                for (StringRecord record : claim(streamKey, last, minIdle)) {
+                    handleLastDelivery(record);
+                }
 
-                    // 4.如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
+                if (pending.size() < batchSize) {
+                    return;
+                }
+                // 4.下一页从最后一条消息的下一个id开始
+                range = Range.rightUnbounded(Range.Bound.inclusive(nextRecordId(pending.get(pending.size() - 1).getId())));
+            }
+        }
+
+        private List<StringRecord> claim(String streamKey, List<RecordId> ids, Duration minIdle) {
+            if (ids.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<StringRecord> records = stringRedisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                    ((StringRedisConnection) connection).xClaim(streamKey, SECKILL_ORDER_GROUP, consumerName,
+                            RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(ids.toArray(new RecordId[0]))));
+            return records == null ? Collections.emptyList() : records;
+        }
+
+        void handleLastDelivery(StringRecord record) {
+            try {
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                boolean created = handleVoucherOrder(voucherOrder);
+                if (created) {
+                    seckillOrderMetrics.recordSucceeded(1);
+                } else {
+                    seckillOrderMetrics.recordFailed(1);
+                }
+                seckillOrderResults.publish(Collections.singletonMap(voucherOrder.getId(), created ? SUCCESS : FAILED));
+                acknowledge(Collections.singletonList(record));
+            } catch (Exception e) {
+                if (isDbUnavailable(e)) {
+                    // 数据库不可用，不是消息本身的问题，留在pending-list中等待下次恢复（Redis中的库存和下单资格已经扣减，不能丢弃）
+                    log.error("数据库不可用，订单稍后重试：{}", record.getValue(), e);
+                    return;
+                }
+                // 多次处理仍然失败，转入死信队列并ACK，避免一直阻塞恢复任务
+                Map<String, String> values = new HashMap<>(record.getValue());
+                values.put("stream", record.getStream());
+                values.put("recordId", record.getId().getValue());
+                deadLetter(values, e);
+                acknowledge(Collections.singletonList(record));
+            }
+        }
+    }
+
+    /**
+     * 本地订单日志回放任务：数据库恢复后把日志中的订单按批组提交写入数据库
+     */
+    private class JournalReplayer implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    // 1.读取一批待回放的订单
+                    List<VoucherOrder> voucherOrders = seckillOrderJournal.peek(replayBatchSize);
+                    if (voucherOrders.isEmpty()) {
+                        return;
+                    }
+                    // 2.写入数据库，数据库仍不可用时抛出异常，等待下次回放
+                    Map<Long, String> results = replay(voucherOrders);
+                    // 3.移动读指针，移出日志中的订单集合，写入处理结果
+                    seckillOrderJournal.commit(voucherOrders.size());
+                    stringRedisTemplate.opsForSet().remove(SECKILL_JOURNAL_KEY, (Object[]) orderIdsOf(voucherOrders));
+                    seckillOrderResults.publish(results);
+                    log.info("回放本地订单日志{}条，剩余{}条", voucherOrders.size(), seckillOrderJournal.size());
+                }
+            } catch (Exception e) {
+                log.warn("回放本地订单日志失败，稍后重试：{}", ExceptionUtil.getRootCauseMessage(e));
+            }
+        }
 
-                    // 5.ACK确认 SACK stream.orders g1 id     【record.getId() 得到的是消息id】
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+        private Map<Long, String> replay(List<VoucherOrder> voucherOrders) {
+            Map<Long, String> results = new HashMap<>(voucherOrders.size());
+            // 1.优先组提交
+            if (handleVoucherOrders(voucherOrders)) {
+                voucherOrders.forEach(voucherOrder -> results.put(voucherOrder.getId(), SUCCESS));
+                seckillOrderMetrics.recordSucceeded(voucherOrders.size());
+                return results;
+            }
+            // 2.逐条下单（已写入的订单会被跳过），数据库不可用的异常直接抛出，整批稍后重试
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                try {
+                    boolean created = handleVoucherOrder(voucherOrder);
+                    results.put(voucherOrder.getId(), created ? SUCCESS : FAILED);
+                    if (created) {
+                        seckillOrderMetrics.recordSucceeded(1);
+                    } else {
+                        seckillOrderMetrics.recordFailed(1);
+                    }
                 } catch (Exception e) {
-                    log.error("处理pending-list订单异常", e);
-                    // 如果在处理pending-list中的消息的过程中发生异常，不用递归调用[handlePendingList]，因为会进入下一次循环
+                    if (isDbUnavailable(e)) {
+                        throw e;
+                    }
+                    // 订单本身有问题，转入死信队列，避免阻塞整个日志
+                    Map<String, String> values = new HashMap<>();
+                    values.put("id", voucherOrder.getId().toString());
+                    values.put("userId", voucherOrder.getUserId().toString());
+                    values.put("voucherId", voucherOrder.getVoucherId().toString());
+                    values.put("stream", "journal");
+                    deadLetter(values, e);
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * 订单转入死信队列 stream.orders.dlq，并通知等待结果的请求下单失败
+     */
+    private void deadLetter(Map<String, String> values, Exception e) {
+        values.put("error", ExceptionUtil.getRootCauseMessage(e));
+        stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ, values);
+        seckillOrderResults.publish(Collections.singletonMap(Long.valueOf(values.get("id")), FAILED));
+        seckillOrderMetrics.recordDeadLettered(1);
+        log.error("订单处理失败，已转入死信队列：{}", values, e);
+    }
+
+    /**
+     * 是否是数据库不可用（而不是订单本身的问题）：
+     * 连接失败时事务管理器在开启事务时抛出CannotCreateTransactionException，它不是DataAccessException；
+     * 事务中途断开连接是RecoverableDataAccessException；连接池获取连接超时是SQLTransientConnectionException
+     */
+    private static boolean isDbUnavailable(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof TransientDataAccessException
+                    || t instanceof DataAccessResourceFailureException
+                    || t instanceof RecoverableDataAccessException
+                    || t instanceof CannotCreateTransactionException
+                    || t instanceof SQLTransientConnectionException) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-                    try {
-                        Thread.sleep(20);   // 休眠20毫秒，防止循环执行的频率过高
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
+    /**
+     * 计算消息id的下一个id（毫秒数-序号），用于XPENDING分页时跳过上一页的最后一条
+     */
+    private static String nextRecordId(RecordId id) {
+        return id.getTimestamp() + "-" + (id.getSequence() + 1);
+    }
+
+    void handleRecords(List<? extends MapRecord<String, ?, ?>> list) {
+        // 1.解析消息中的订单信息
+        List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+        for (MapRecord<String, ?, ?> record : list) {
+            Map<?, ?> values = record.getValue();     // 消息队列中存储的键值对集合
+            voucherOrders.add(BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true));
+        }
+
+        // 2.本地订单日志中还有未回放的订单，说明数据库刚刚不可用，直接写入日志，由回放任务统一写入数据库
+        if (seckillOrderJournal.isActive() && spill(list, voucherOrders)) {
+            return;
+        }
+
+        // 3.优先组提交：整批订单一次事务写入
+        Map<Long, String> results = new HashMap<>(list.size());
+        boolean committed;
+        try {
+            committed = handleVoucherOrders(voucherOrders);
+        } catch (RuntimeException e) {
+            // 数据库不可用：写入本地日志后ACK，日志未开启或已满时消息留在pending-list中
+            if (isDbUnavailable(e) && spill(list, voucherOrders)) {
+                log.warn("数据库不可用，{}条订单已写入本地日志：{}", voucherOrders.size(), ExceptionUtil.getRootCauseMessage(e));
+                return;
+            }
+            throw e;
+        }
+        if (committed) {
+            voucherOrders.forEach(voucherOrder -> results.put(voucherOrder.getId(), SUCCESS));
+            seckillOrderMetrics.recordSucceeded(voucherOrders.size());
+            seckillOrderResults.publish(results);
+            acknowledge(list);
+            return;
+        }
+
+        // 4.组提交失败（重复订单或库存不足），逐条下单，单条失败不影响其他订单
+        List<MapRecord<String, ?, ?>> handled = new ArrayList<>(list.size());
+        List<MapRecord<String, ?, ?>> unavailable = new ArrayList<>();
+        List<VoucherOrder> unavailableOrders = new ArrayList<>();
+        try {
+            for (int i = 0; i < list.size(); i++) {
+                VoucherOrder voucherOrder = voucherOrders.get(i);
+                try {
+                    boolean created = handleVoucherOrder(voucherOrder);
+                    results.put(voucherOrder.getId(), created ? SUCCESS : FAILED);
+                    if (created) {
+                        seckillOrderMetrics.recordSucceeded(1);
+                    } else {
+                        seckillOrderMetrics.recordFailed(1);
+                    }
+                    handled.add(list.get(i));
+                } catch (Exception e) {
+                    if (isDbUnavailable(e)) {
+                        // 数据库不可用，稍后尝试写入本地日志
+                        unavailable.add(list.get(i));
+                        unavailableOrders.add(voucherOrder);
+                        log.error("数据库不可用，处理订单失败：{}", voucherOrder, e);
+                        continue;
                     }
+                    seckillOrderMetrics.recordErrors(1);
+                    log.error("处理订单异常：{}", voucherOrder, e);
                 }
             }
+            if (!unavailable.isEmpty() && !spill(unavailable, unavailableOrders)) {
+                seckillOrderMetrics.recordErrors(unavailable.size());
+            }
+        } finally {
+            // 5.写入处理结果并唤醒等待结果的请求
+            seckillOrderResults.publish(results);
+            // 6.ACK确认 XACK stream.orders:{n} g1 id1 id2 ...  【每个分片一次性确认已经处理成功的消息，出现异常的消息留在pending-list中】
+            acknowledge(handled);
+        }
+    }
+
+    /**
+     * 把一批订单写入本地订单日志并ACK
+     *
+     * @return false代表日志未开启或空间不足
+     */
+    private boolean spill(List<? extends MapRecord<String, ?, ?>> list, List<VoucherOrder> voucherOrders) {
+        if (!seckillOrderJournal.append(voucherOrders)) {
+            return false;
+        }
+        // 登记到日志中的订单集合后再ACK，超时取消任务据此判断订单仍在处理中
+        stringRedisTemplate.opsForSet().add(SECKILL_JOURNAL_KEY, orderIdsOf(voucherOrders));
+        seckillOrderMetrics.recordSpilled(voucherOrders.size());
+        acknowledge(list);
+        return true;
+    }
+
+    private static String[] orderIdsOf(List<VoucherOrder> voucherOrders) {
+        return voucherOrders.stream().map(voucherOrder -> voucherOrder.getId().toString()).toArray(String[]::new);
+    }
+
+    private void acknowledge(List<? extends MapRecord<String, ?, ?>> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        // 每个分片一次ACK_DEL_SCRIPT：XACK后立即XDEL，stream的长度 = 未投递 + 未确认的消息数，裁剪时不会丢失未确认的消息
+        Map<String, List<String>> idsByStream = records.stream().collect(Collectors.groupingBy(
+                MapRecord::getStream, Collectors.mapping(record -> record.getId().getValue(), Collectors.toList())));
+        idsByStream.forEach((streamKey, ids) -> {
+            List<String> args = new ArrayList<>(ids.size() + 1);
+            args.add(SECKILL_ORDER_GROUP);
+            args.addAll(ids);
+            stringRedisTemplate.execute(ACK_DEL_SCRIPT, Collections.singletonList(streamKey), args.toArray());
+        });
+    }
+
+    /**
+     * 组提交一批订单
+     *
+     * @return true代表整批写入成功，false代表需要逐条处理
+     */
+    private boolean handleVoucherOrders(List<VoucherOrder> voucherOrders) {
+        if (voucherOrders.size() < 2) {
+            return false;
+        }
+        try {
+            proxy.createVoucherOrders(voucherOrders);
+            return true;
+        } catch (DuplicateKeyException | IllegalStateException e) {
+            // 事务已整体回滚，交给逐条下单处理（逐条下单会跳过已存在的订单）
+            log.warn("批量下单失败，改为逐条下单：{}", e.getMessage());
+            return false;
         }
     }
 
@@ -164,7 +710,23 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }*/
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
+    /**
+     * 处理单个订单
+     *
+     * @return true代表订单已写入数据库，false代表订单没有创建（库存不足或用户已有其他订单）
+     */
+    private boolean handleVoucherOrder(VoucherOrder voucherOrder) {
+        if (!orderLockEnabled) {
+            // 幂等模式：一人一单已经由Lua脚本和(user_id, voucher_id)唯一索引保证，消费者不再访问分布式锁
+            try {
+                return proxy.createVoucherOrder(voucherOrder);
+            } catch (DuplicateKeyException e) {
+                // 订单已存在（消息被重复投递），扣减的库存已随事务回滚，视为处理成功
+                log.warn("订单已存在，忽略重复消息：orderId={}", voucherOrder.getId());
+                return getById(voucherOrder.getId()) != null;
+            }
+        }
+
         // 1.获取用户
         Long userId = voucherOrder.getUserId();     // 当前是线程池执行，非主线程，所以不能在UserHolder中获取userId
         // 2.创建锁对象
@@ -177,10 +739,10 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (!isLock) {
             // 获取锁失败，返回错误信息或重试
             log.error("不允许重复下单");
-            return;
+            return false;
         }
         try {
-            proxy.createVoucherOrder(voucherOrder);     // 调用代理对象的方法[createVoucherOrder]，注意获取的是主线程的代理对象
+            return proxy.createVoucherOrder(voucherOrder);     // 调用代理对象的方法[createVoucherOrder]
         } catch (IllegalStateException e) {
             throw new RuntimeException(e);
         } finally {
@@ -189,35 +751,191 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }
 
-    private IVoucherOrderService proxy; // 记录主线程对应的代理对象
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy; // 当前对象的代理对象，懒加载注入，消费者线程在本节点还没有请求时也能调用事务方法
 
     public Result seckillVoucher(Long voucherId) {
+        // 0.本节点已知售罄，直接返回，不再访问Redis
+        if (seckillSoldOutCache.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 0.1 限流：本地令牌桶 + Redis全局令牌桶，超出的请求在执行秒杀脚本之前拒绝
+        if (!seckillRateLimiter.tryAcquire(voucherId)) {
+            return Result.fail("系统繁忙，请稍后重试");
+        }
         // 获取用户
         Long userId = UserHolder.getUser().getId();
+        // 库存桶数，同一张券不变
+        int buckets = seckillVoucherService.queryStockBuckets(voucherId);
+        if (buckets == 0) {
+            return Result.fail("秒杀券不存在！");
+        }
         // 获取订单id
         long orderId = redisIdWorker.nextId("order");
 
-        // 1.执行lua脚本
+        // 1.执行lua脚本，在用户的主桶中判断资格并扣减库存
+        int home = seckillKeys.homeBucket(userId, buckets);
+        int shard = seckillKeys.shardOf(voucherId, home);
         Long result = stringRedisTemplate.execute(
                 SECKILL_SCRIPT, // 加载的模板对象
-                Collections.emptyList(),    // 键参数
-                voucherId.toString(), userId.toString(), String.valueOf(orderId) // 值参数
+                Arrays.asList(seckillKeys.stockKey(voucherId, home), seckillKeys.orderKey(voucherId, home),
+                        seckillKeys.timeKey(voucherId, home), seckillKeys.streamKey(shard), seckillKeys.timeoutKey(shard)),  // 键参数
+                voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                String.valueOf(streamMaxBacklog), String.valueOf(TimeUnit.SECONDS.toMillis(payTimeoutSeconds)),
+                String.valueOf(home), String.valueOf(buckets) // 值参数
         );
 
         // 2.判断结果是否为0
         int r = result.intValue();
+        if (r == 7) {
+            // 主桶库存不足，已占用下单资格，到其他桶扣减库存
+            r = seckillFromSiblings(voucherId, userId, orderId, buckets, home);
+        }
         if (r != 0) {
             // 2.1 不为0，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            if (r == 1) {
+                // 售罄，标记并广播给其他节点
+                seckillSoldOutCache.markSoldOut(voucherId);
+            }
+            if (r == 5) {
+                // 库存没有加载，异步从数据库预热
+                voucherService.warmUpSeckillVoucherAsync(voucherId);
+            }
+            return Result.fail(seckillFailMessage(r));
         }
 
-        // 3.获取代理对象
-        this.proxy = (IVoucherOrderService) AopContext.currentProxy();   // 获取当前对象的代理对象
+        // 3.登记下单用户，只有下单用户可以查询订单的处理结果【登记失败不影响已经成功的下单，写入数据库后以订单为准】
+        try {
+            seckillOrderResults.own(orderId, userId);
+        } catch (Exception e) {
+            log.warn("登记订单的下单用户失败，orderId={}", orderId, e);
+        }
 
         // 4.返回订单id
         return Result.ok(orderId);
     }
 
+    /**
+     * 依次尝试主桶之后的其他桶，全部失败时释放主桶中占用的下单资格（补偿），返回各桶结果中最需要处理的一个
+     * 【执行脚本异常时不释放：脚本可能已经扣减了库存，保留资格只会少卖，由对账报告Redis中多出的下单用户】
+     */
+    private int seckillFromSiblings(Long voucherId, Long userId, long orderId, int buckets, int home) {
+        int r = 1;
+        for (int i = 1; i < buckets; i++) {
+            int bucket = (home + i) % buckets;
+            int shard = seckillKeys.shardOf(voucherId, bucket);
+            Long result = stringRedisTemplate.execute(SECKILL_BUCKET_SCRIPT,
+                    Arrays.asList(seckillKeys.stockKey(voucherId, bucket),
+                            seckillKeys.streamKey(shard), seckillKeys.timeoutKey(shard)),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                    String.valueOf(streamMaxBacklog), String.valueOf(TimeUnit.SECONDS.toMillis(payTimeoutSeconds)),
+                    String.valueOf(bucket));
+            int br = result.intValue();
+            if (br == 0) {
+                return 0;
+            }
+            // 繁忙优先于未加载，未加载优先于售罄：只有所有桶都售罄才标记售罄
+            if (br == 6 || (br == 5 && r == 1)) {
+                r = br;
+            }
+        }
+        // 补偿：所有桶都没有扣减到库存，释放占用的下单资格
+        stringRedisTemplate.opsForSet().remove(seckillKeys.orderKey(voucherId, home), userId.toString());
+        return r;
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        // 1.只能查询自己的订单
+        if (!isOrderOwner(orderId)) {
+            return Result.fail("订单不存在！");
+        }
+        // 2.先查短期有效的结果key
+        String status = seckillOrderResults.get(orderId);
+        if (status != null) {
+            return Result.ok(status);
+        }
+        // 3.结果key已过期或订单还在队列中，查询数据库确认
+        return Result.ok(getById(orderId) != null ? SUCCESS : PENDING);
+    }
+
+    /**
+     * 订单是否属于当前用户：先查下单时登记的用户，登记过期后查数据库中的订单，都没有时视为不属于
+     */
+    private boolean isOrderOwner(Long orderId) {
+        Long owner = seckillOrderResults.getOwner(orderId);
+        if (owner == null) {
+            VoucherOrder order = getById(orderId);
+            owner = order == null ? null : order.getUserId();
+        }
+        return UserHolder.getUser().getId().equals(owner);
+    }
+
+    @Override
+    public Result queryStreamMetrics() {
+        // 1.各分片的长度、pending数量和积压（未投递）数量
+        List<Map<String, Object>> shards = new ArrayList<>(streamKeys.size());
+        long totalBacklog = 0;
+        for (String streamKey : streamKeys) {
+            Long length = stringRedisTemplate.opsForStream().size(streamKey);
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, SECKILL_ORDER_GROUP);
+            long len = length == null ? 0 : length;
+            long pending = summary == null ? 0 : summary.getTotalPendingMessages();
+            Map<String, Object> shard = new LinkedHashMap<>();
+            shard.put("stream", streamKey);
+            shard.put("length", len);
+            shard.put("pending", pending);
+            // 已确认的消息会被删除，所以 长度 - pending = 还没有投递给任何消费者的消息数
+            shard.put("lag", Math.max(len - pending, 0));
+            shards.add(shard);
+            totalBacklog += len;
+        }
+        // 2.本节点消费者的处理量
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("shards", shards);
+        metrics.put("backlog", totalBacklog);
+        metrics.put("maxBacklogPerShard", streamMaxBacklog);
+        metrics.put("deadLetter", stringRedisTemplate.opsForStream().size(SECKILL_ORDER_DLQ));
+        metrics.put("journal", seckillOrderJournal.size());
+        metrics.put("node", nodeId);
+        metrics.put("consumers", seckillOrderMetrics.snapshot());
+        return Result.ok(metrics);
+    }
+
+    @Override
+    public DeferredResult<Result> awaitOrderStatus(Long orderId, long timeoutMillis) {
+        // 只能等待自己的订单，不是时直接返回，不挂起请求
+        if (!isOrderOwner(orderId)) {
+            DeferredResult<Result> deferred = new DeferredResult<>();
+            deferred.setResult(Result.fail("订单不存在！"));
+            return deferred;
+        }
+        return seckillOrderResults.await(orderId, timeoutMillis);
+    }
+
+    /**
+     * 秒杀脚本返回值对应的提示信息
+     */
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不能重复下单";
+            case 3:
+                return "秒杀尚未开始！";
+            case 4:
+                return "秒杀已经结束！";
+            case 5:
+                return "活动准备中，请稍后重试";
+            case 6:
+                return "系统繁忙，请稍后重试";
+            default:
+                return "秒杀失败";
+        }
+    }
+
     @Override
 /*    public Result seckillVoucher(Long voucherId) {
         // 获取用户
@@ -283,7 +1001,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
         // 创建锁对象
         // 锁的名字为订单业务和用户id，表示锁作用在订单业务中的用户级别
-        // SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
+        // SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate, redisLockClient);
         RLock lock = redissonClient.getLock("lock:order:" + userId);
         // 获取锁
         boolean isLock = lock.tryLock();    // 无参，默认获取失败后不等待，并且超过30秒自动释放锁
@@ -307,18 +1025,21 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }*/
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
         // 5.一人一单
         // 5.1 查询订单
         Long userId = voucherOrder.getUserId();     // 已修改为异步执行的，因此不能从UserHolder获取用户id
         Long voucherId = voucherOrder.getVoucherId();
 
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-        // 5.2 判断订单是否存在
-        if (count > 0) {
-            // 用户已经购买过该券
-            log.error("用户已经购买过一次！");
-            return;
+        // 幂等模式下不再查询，重复订单由唯一索引拦截
+        if (orderLockEnabled) {
+            int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
+            // 5.2 判断订单是否存在
+            if (count > 0) {
+                // 用户已经购买过该券（消息被重复投递时就是本订单）
+                log.error("用户已经购买过一次！");
+                return getById(voucherOrder.getId()) != null;
+            }
         }
 
         // 6.扣减库存
@@ -333,9 +1054,149 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (!success) {
             // 扣减失败，一般是由于库存不足
             log.error("库存不足!");
-            return;
+            return false;
+        }
+
+        return save(voucherOrder); // 订单数据写入数据库
+    }
+
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 1.按优惠券分组，统计每种券在本批次中的订单数
+        // 【按券id升序扣减，多个批次总是以相同的顺序锁定tb_seckill_voucher中的行，不会互相死锁】
+        Map<Long, Long> counts = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.counting()));
+
+        // 2.每种券只扣减一次库存 stock = stock - k
+        for (Map.Entry<Long, Long> entry : counts.entrySet()) {
+            Long voucherId = entry.getKey();
+            long k = entry.getValue();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", voucherId).ge("stock", k)
+                    .update();
+            if (!success) {
+                // 库存不够整批扣减，抛出异常回滚整批
+                throw new IllegalStateException("库存不足，批量扣减失败，voucherId=" + voucherId);
+            }
+        }
+
+        // 3.一条多值insert写入全部订单，一人一单由(user_id, voucher_id)唯一索引保证，出现重复时整批回滚
+        getBaseMapper().insertBatch(voucherOrders);
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds) {
+        // 1.锁定仍未支付的订单，避免和支付并发
+        List<VoucherOrder> orders = query().in("id", orderIds).eq("status", 1).last("for update").list();
+        if (orders.isEmpty()) {
+            return orders;
+        }
+
+        // 2.取消订单 status = 4
+        List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        update().set("status", 4).in("id", ids).eq("status", 1).update();
+
+        // 3.每种券一次归还库存 stock = stock + k，与下单一样按券id升序加锁
+        Map<Long, Long> counts = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.counting()));
+        counts.forEach((voucherId, k) -> seckillVoucherService.update()
+                .setSql("stock = stock + " + k)
+                .eq("voucher_id", voucherId)
+                .update());
+        return orders;
+    }
+
+    @Override
+    public Set<Long> queryQueuedOrders(List<VoucherOrder> voucherOrders) {
+        // 1.订单消息队列：已ACK的消息会被删除，stream中剩下的就是未投递和pending的消息
+        Set<Long> queued = new HashSet<>();
+        Map<String, Set<Long>> idsByStream = new HashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            for (String streamKey : streamKeysOf(voucherOrder.getVoucherId())) {
+                idsByStream.computeIfAbsent(streamKey, key -> new HashSet<>()).add(voucherOrder.getId());
+            }
+        }
+        idsByStream.forEach((streamKey, ids) -> queued.addAll(findInStream(streamKey, ids)));
+
+        // 2.本地订单日志：消费者先登记到日志集合再ACK，所以先查stream再查日志，不会漏掉正在转移的订单
+        List<VoucherOrder> rest = voucherOrders.stream()
+                .filter(voucherOrder -> !queued.contains(voucherOrder.getId()))
+                .collect(Collectors.toList());
+        if (rest.isEmpty()) {
+            return queued;
+        }
+        List<Object> journaled = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder voucherOrder : rest) {
+                conn.sIsMember(SECKILL_JOURNAL_KEY, voucherOrder.getId().toString());
+            }
+            return null;
+        });
+        for (int i = 0; i < rest.size(); i++) {
+            if (Boolean.TRUE.equals(journaled.get(i))) {
+                queued.add(rest.get(i).getId());
+            }
+        }
+        return queued;
+    }
+
+    @Override
+    public Map<Long, Long> countQueuedOrders(Collection<Long> voucherIds) {
+        Map<Long, Long> counts = new HashMap<>(voucherIds.size());
+        Map<String, Set<String>> idsByStream = new HashMap<>();
+        for (Long voucherId : voucherIds) {
+            for (String streamKey : streamKeysOf(voucherId)) {
+                idsByStream.computeIfAbsent(streamKey, key -> new HashSet<>()).add(voucherId.toString());
+            }
         }
+        idsByStream.forEach((streamKey, ids) -> scanStream(streamKey, values -> {
+            Object voucherId = values.get("voucherId");
+            if (voucherId != null && ids.contains(voucherId.toString())) {
+                counts.merge(Long.valueOf(voucherId.toString()), 1L, Long::sum);
+            }
+            return true;
+        }));
+        return counts;
+    }
 
-        save(voucherOrder); // 订单数据写入数据库
+    /**
+     * 找出仍在分片中的订单
+     */
+    private Set<Long> findInStream(String streamKey, Set<Long> ids) {
+        Set<Long> found = new HashSet<>();
+        scanStream(streamKey, values -> {
+            Object id = values.get("id");
+            if (id != null && ids.contains(Long.valueOf(id.toString()))) {
+                found.add(Long.valueOf(id.toString()));
+            }
+            return found.size() < ids.size();
+        });
+        return found;
+    }
+
+    /**
+     * 分页XRANGE扫描一个分片中的消息，分片长度受stream-max-backlog限制，visitor返回false时停止扫描
+     */
+    private void scanStream(String streamKey, Predicate<Map<Object, Object>> visitor) {
+        Range<String> range = Range.unbounded();
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                    .range(streamKey, range, RedisZSetCommands.Limit.limit().count(STREAM_SCAN_PAGE_SIZE));
+            if (records == null || records.isEmpty()) {
+                return;
+            }
+            for (MapRecord<String, Object, Object> record : records) {
+                if (!visitor.test(record.getValue())) {
+                    return;
+                }
+            }
+            if (records.size() < STREAM_SCAN_PAGE_SIZE) {
+                return;
+            }
+            range = Range.rightUnbounded(Range.Bound.inclusive(nextRecordId(records.get(records.size() - 1).getId())));
+        }
     }
 }
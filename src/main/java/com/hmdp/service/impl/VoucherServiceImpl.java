@@ -1,21 +1,49 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillOrderJournal;
+import com.hmdp.utils.SeckillSoldOutCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_JOURNAL_KEY;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 /**
  * <p>
@@ -25,6 +53,7 @@ import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
@@ -34,6 +63,33 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private SeckillOrderJournal seckillOrderJournal;
+
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Value("${hmdp.seckill.warm-up-lead:300}")
+    private long warmUpLeadSeconds;     // 活动开始前多少秒再次预热
+
+    private static final int WARM_UP_BATCH_SIZE = 1000;     // 预热下单用户时每页读取的订单数
+
+    private static final int MAX_STOCK_BUCKETS = 64;    // 库存桶数上限，主桶库存不足时最多依次尝试其余的桶
+
+    private final ScheduledExecutorService warmUpExecutor = Executors.newSingleThreadScheduledExecutor();  // 执行预热任务的线程
+
+    private final Set<Long> warmingUp = ConcurrentHashMap.newKeySet();  // 正在预热的券
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -51,11 +107,245 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
+        int buckets = voucher.getStockBuckets() == null ? 1
+                : Math.min(Math.max(voucher.getStockBuckets(), 1), MAX_STOCK_BUCKETS);
+        seckillVoucher.setStockBuckets(buckets);
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        // 保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 保存秒杀库存到Redis中，拆分为多个桶时余数分给前面的桶，各桶之和等于总库存
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucher.getId(), bucket),
+                    String.valueOf(bucketStock(voucher.getStock(), buckets, bucket)));
+        }
+        // 保存秒杀时间窗口（epoch秒），由秒杀脚本判断活动是否开始或结束
+        saveSeckillTime(voucher.getId(), buckets, voucher.getBeginTime(), voucher.getEndTime());
+        // 有库存了，清除各节点的售罄标记
+        seckillSoldOutCache.clear(voucher.getId());
+        // 活动开始前再预热一次
+        scheduleWarmUp(voucher.getId(), voucher.getBeginTime());
+    }
+
+    private void saveSeckillTime(Long voucherId, int buckets, LocalDateTime beginTime, LocalDateTime endTime) {
+        // 每个桶一份时间窗口，秒杀脚本在用户主桶所在的slot中判断
+        Map<String, String> window = seckillTimeWindow(beginTime, endTime);
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            stringRedisTemplate.opsForHash().putAll(seckillKeys.timeKey(voucherId, bucket), window);
+        }
+    }
+
+    private static long bucketStock(long stock, int buckets, int bucket) {
+        return stock / buckets + (bucket < stock % buckets ? 1 : 0);
+    }
+
+    private static Map<String, String> seckillTimeWindow(LocalDateTime beginTime, LocalDateTime endTime) {
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(beginTime.atZone(ZoneId.systemDefault()).toEpochSecond()));
+        window.put("end", String.valueOf(endTime.atZone(ZoneId.systemDefault()).toEpochSecond()));
+        return window;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 启动时异步预热所有未结束的秒杀券，不阻塞应用启动
+        warmUpExecutor.execute(this::warmUpSeckillVouchers);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        // 停止正在执行的预热，丢弃还没有到时间的预热任务
+        warmUpExecutor.shutdownNow();
+    }
+
+    @Override
+    public void warmUpSeckillVouchers() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query().gt("end_time", now).list();
+        if (vouchers.isEmpty()) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        warmUp(vouchers);
+        log.info("秒杀券预热完成，共{}张，耗时{}ms", vouchers.size(), System.currentTimeMillis() - begin);
+
+        // 尚未开始的活动，在开始前再预热一次，防止期间Redis被清空或主从切换丢失数据
+        for (SeckillVoucher voucher : vouchers) {
+            scheduleWarmUp(voucher.getVoucherId(), voucher.getBeginTime());
+        }
+    }
+
+    @Override
+    public void warmUpSeckillVoucher(Long voucherId) {
+        // 同一张券同时只允许一个预热任务
+        if (!warmingUp.add(voucherId)) {
+            return;
+        }
+        try {
+            warmUp(voucherId);
+        } finally {
+            warmingUp.remove(voucherId);
+        }
+    }
+
+    @Override
+    public void warmUpSeckillVoucherAsync(Long voucherId) {
+        // 提交前占位，并发的请求只会提交一个预热任务，任务结束后释放
+        if (warmingUp.add(voucherId)) {
+            warmUpExecutor.execute(() -> {
+                try {
+                    warmUp(voucherId);
+                } finally {
+                    warmingUp.remove(voucherId);
+                }
+            });
+        }
+    }
+
+    private void warmUp(Long voucherId) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher != null) {
+            warmUp(Collections.singletonList(voucher));
+            log.info("秒杀券预热完成，voucherId={}", voucherId);
+        }
+    }
+
+    private void scheduleWarmUp(Long voucherId, LocalDateTime beginTime) {
+        long delay = Duration.between(LocalDateTime.now(), beginTime).getSeconds() - warmUpLeadSeconds;
+        if (delay > 0) {
+            warmUpExecutor.schedule(() -> warmUpSeckillVoucher(voucherId), delay, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 用管道把库存、时间窗口、下单用户写入Redis
+     * 已存在的库存不会被覆盖（Redis中的库存可能已经被扣减，比数据库更新），时间窗口以数据库为准，下单用户SADD天然幂等
+     */
+    private void warmUp(List<SeckillVoucher> vouchers) {
+        // 1.Redis中缺失的库存 = 数据库库存 - 订单消息队列中还没有写入数据库的订单数
+        Map<String, Long> stocks = missingStocks(vouchers);
+
+        // 2.一次管道写入缺失的库存（SETNX）和各个桶的时间窗口
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            stocks.forEach((key, stock) -> conn.setNX(key, stock.toString()));
+            for (SeckillVoucher voucher : vouchers) {
+                Map<String, String> window = seckillTimeWindow(voucher.getBeginTime(), voucher.getEndTime());
+                for (int bucket = 0; bucket < stockBuckets(voucher); bucket++) {
+                    conn.hMSet(seckillKeys.timeKey(voucher.getVoucherId(), bucket), window);
+                }
+            }
+            return null;
+        });
+
+        // 3.按主键分页读取订单，每页一次管道SADD 【包括已取消的订单：取消后仍占用下单资格，唯一索引uk_user_voucher也不允许再次下单】
+        for (SeckillVoucher voucher : vouchers) {
+            warmUpBuyers(voucher.getVoucherId(), stockBuckets(voucher));
+            if (voucher.getStock() > 0) {
+                seckillSoldOutCache.clear(voucher.getVoucherId());
+            }
+        }
+    }
+
+    /**
+     * 计算Redis中缺失的库存桶应该写入的库存，返回 库存key -> 库存
+     * 【先统计队列再重新读取数据库库存：期间写入数据库的订单会被扣减两次，库存只会偏少，不会超卖】
+     * 本地订单日志中的订单（数据库不可用期间ACK的消息）同样还没有扣减数据库库存，但日志中没有券id，无法按券扣除，
+     * 任意节点的日志中还有未回放的订单时不写入库存，秒杀脚本返回未加载，日志回放完成后的请求会再次触发预热
+     * <p>
+     * 只有一部分桶缺失时（如Redis Cluster中一个节点主从切换丢失了数据），无法知道其余桶已经扣减了多少，缺失的桶写入0：
+     * 主桶为这些桶的用户到其他桶扣减库存，丢失的库存只会少卖，由对账报告偏差
+     */
+    private Map<String, Long> missingStocks(List<SeckillVoucher> vouchers) {
+        // 1.查询哪些桶的库存不在Redis中
+        List<String> keys = new ArrayList<>();
+        for (SeckillVoucher voucher : vouchers) {
+            for (int bucket = 0; bucket < stockBuckets(voucher); bucket++) {
+                keys.add(seckillKeys.stockKey(voucher.getVoucherId(), bucket));
+            }
+        }
+        List<Object> exists = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            keys.forEach(conn::exists);
+            return null;
+        });
+        Map<String, Long> stocks = new HashMap<>();
+        List<Long> missing = new ArrayList<>();
+        int i = 0;
+        for (SeckillVoucher voucher : vouchers) {
+            List<String> missingKeys = new ArrayList<>();
+            for (int bucket = 0; bucket < stockBuckets(voucher); bucket++, i++) {
+                if (!Boolean.TRUE.equals(exists.get(i))) {
+                    missingKeys.add(keys.get(i));
+                }
+            }
+            if (missingKeys.size() == stockBuckets(voucher)) {
+                missing.add(voucher.getVoucherId());
+            } else if (!missingKeys.isEmpty()) {
+                log.warn("秒杀券的部分库存桶不在Redis中，缺失的桶按0预热，voucherId={}, keys={}", voucher.getVoucherId(), missingKeys);
+                missingKeys.forEach(key -> stocks.put(key, 0L));
+            }
+        }
+        if (missing.isEmpty()) {
+            return stocks;
+        }
+        // 2.统计队列中的订单
+        Map<Long, Long> queued = voucherOrderService.countQueuedOrders(missing);
+        // 3.日志中还有未回放的订单时跳过 【在统计队列之后检查：订单先登记到日志订单集合再从队列删除，不会两边都漏掉】
+        if (hasUnreplayedJournal()) {
+            log.warn("本地订单日志中还有未回放的订单，暂不预热库存，voucherIds={}", missing);
+            return stocks;
+        }
+        // 4.读取数据库库存，拆分到各个桶
+        for (SeckillVoucher voucher : seckillVoucherService.listByIds(missing)) {
+            long stock = Math.max(voucher.getStock() - queued.getOrDefault(voucher.getVoucherId(), 0L), 0);
+            int buckets = stockBuckets(voucher);
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                stocks.put(seckillKeys.stockKey(voucher.getVoucherId(), bucket), bucketStock(stock, buckets, bucket));
+            }
+        }
+        return stocks;
+    }
+
+    /**
+     * 本节点或其他节点的本地订单日志中是否还有未回放的订单（所有节点的日志订单都登记在 seckill:journal 中）
+     */
+    private boolean hasUnreplayedJournal() {
+        if (seckillOrderJournal.isActive()) {
+            return true;
+        }
+        Long size = stringRedisTemplate.opsForSet().size(SECKILL_JOURNAL_KEY);
+        return size != null && size > 0;
+    }
+
+    private void warmUpBuyers(Long voucherId, int buckets) {
+        long lastId = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId).gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + WARM_UP_BATCH_SIZE));
+            if (orders.isEmpty()) {
+                return;
+            }
+            lastId = orders.get(orders.size() - 1).getId();
+            // 用户的下单资格写入主桶
+            Map<String, List<String>> userIds = orders.stream().collect(Collectors.groupingBy(
+                    order -> seckillKeys.orderKey(voucherId, seckillKeys.homeBucket(order.getUserId(), buckets)),
+                    Collectors.mapping(order -> order.getUserId().toString(), Collectors.toList())));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                userIds.forEach((key, ids) -> conn.sAdd(key, ids.toArray(new String[0])));
+                return null;
+            });
+            if (orders.size() < WARM_UP_BATCH_SIZE) {
+                return;
+            }
+        }
+    }
+
+    private static int stockBuckets(SeckillVoucher voucher) {
+        return voucher.getStockBuckets() == null || voucher.getStockBuckets() < 1 ? 1 : voucher.getStockBuckets();
     }
 }
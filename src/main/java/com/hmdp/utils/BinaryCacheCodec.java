@@ -0,0 +1,470 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.User;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * 紧凑的二进制编解码，格式为：魔数(1) + 版本(1) + 值
+ * <p>
+ * 值 = 类型(1) + 内容：Shop、Blog、User按字段顺序编码，先写2字节的非空字段掩码，只写非空字段，
+ * 整数使用zigzag变长编码，字符串为 长度 + UTF-8，时间为UTC秒数 + 纳秒；RedisData为 过期时间 + 值；其他类型的内容为JSON字符串
+ * <p>
+ * 字段的增删改都要升级版本号，读到其他版本的数据时按未命中处理，由数据库重新加载后覆盖；
+ * 第一个字节不是魔数时按JSON解码，切换编码后Redis中已有的JSON缓存仍然可以读取
+ */
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte MAGIC = (byte) 0xB1;     // 不是合法的UTF-8首字节，不会与JSON混淆
+    static final byte VERSION = 1;     // 实体字段变化时升级，BinaryCacheCodecTests中登记新版本的字段列表
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_JSON = 1;
+    private static final byte TYPE_SHOP = 2;
+    private static final byte TYPE_BLOG = 3;
+    private static final byte TYPE_USER = 4;
+    private static final byte TYPE_REDIS_DATA = 5;
+
+    @Resource
+    private JsonCacheCodec jsonCacheCodec;
+
+    public BinaryCacheCodec() {
+    }
+
+    BinaryCacheCodec(JsonCacheCodec jsonCacheCodec) {
+        this.jsonCacheCodec = jsonCacheCodec;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Output out = new Output();
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        if (value instanceof RedisData) {
+            RedisData redisData = (RedisData) value;
+            out.writeByte(TYPE_REDIS_DATA);
+            out.writeTime(redisData.getExpireTime());
+            writeValue(out, redisData.getData());
+        } else {
+            writeValue(out, value);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        if (bytes[0] != MAGIC) {
+            return jsonCacheCodec.decode(bytes, type);
+        }
+        if (bytes[1] != VERSION) {
+            return null;
+        }
+        Input in = new Input(bytes, 2);
+        if (type == RedisData.class) {
+            return (R) readRedisData(in, Object.class);
+        }
+        return type.cast(readValue(in, type));
+    }
+
+    @Override
+    public RedisData decodeWithExpire(byte[] bytes, Class<?> dataType) {
+        if (bytes[0] != MAGIC) {
+            return jsonCacheCodec.decodeWithExpire(bytes, dataType);
+        }
+        if (bytes[1] != VERSION) {
+            return null;
+        }
+        return readRedisData(new Input(bytes, 2), dataType);
+    }
+
+    private RedisData readRedisData(Input in, Class<?> dataType) {
+        byte type = in.readByte();
+        if (type != TYPE_REDIS_DATA) {
+            throw new IllegalStateException("缓存值不是RedisData，类型：" + type);
+        }
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(in.readTime());
+        redisData.setData(readValue(in, dataType));
+        return redisData;
+    }
+
+    private static void writeValue(Output out, Object value) {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Shop) {
+            out.writeByte(TYPE_SHOP);
+            writeShop(out, (Shop) value);
+        } else if (value instanceof Blog) {
+            out.writeByte(TYPE_BLOG);
+            writeBlog(out, (Blog) value);
+        } else if (value instanceof User) {
+            out.writeByte(TYPE_USER);
+            writeUser(out, (User) value);
+        } else {
+            out.writeByte(TYPE_JSON);
+            out.writeString(JSONUtil.toJsonStr(value));
+        }
+    }
+
+    private static Object readValue(Input in, Class<?> type) {
+        byte tag = in.readByte();
+        switch (tag) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_SHOP:
+                return readShop(in);
+            case TYPE_BLOG:
+                return readBlog(in);
+            case TYPE_USER:
+                return readUser(in);
+            case TYPE_JSON:
+                String json = in.readString();
+                return type == Object.class ? JSONUtil.parse(json) : JSONUtil.toBean(json, type);
+            default:
+                throw new IllegalStateException("未知的缓存值类型：" + tag);
+        }
+    }
+
+    // ---------------------------------------- 实体的字段顺序，修改后升级VERSION ----------------------------------------
+
+    private static void writeShop(Output out, Shop shop) {
+        new FieldWriter(out)
+                .putLong(shop.getId())
+                .putString(shop.getName())
+                .putLong(shop.getTypeId())
+                .putString(shop.getImages())
+                .putString(shop.getArea())
+                .putString(shop.getAddress())
+                .putDouble(shop.getX())
+                .putDouble(shop.getY())
+                .putLong(shop.getAvgPrice())
+                .putInt(shop.getSold())
+                .putInt(shop.getComments())
+                .putInt(shop.getScore())
+                .putString(shop.getOpenHours())
+                .putTime(shop.getCreateTime())
+                .putTime(shop.getUpdateTime())
+                .putDouble(shop.getDistance())
+                .end();
+    }
+
+    private static Shop readShop(Input in) {
+        FieldReader fields = new FieldReader(in);
+        return new Shop()
+                .setId(fields.getLong())
+                .setName(fields.getString())
+                .setTypeId(fields.getLong())
+                .setImages(fields.getString())
+                .setArea(fields.getString())
+                .setAddress(fields.getString())
+                .setX(fields.getDouble())
+                .setY(fields.getDouble())
+                .setAvgPrice(fields.getLong())
+                .setSold(fields.getInt())
+                .setComments(fields.getInt())
+                .setScore(fields.getInt())
+                .setOpenHours(fields.getString())
+                .setCreateTime(fields.getTime())
+                .setUpdateTime(fields.getTime())
+                .setDistance(fields.getDouble());
+    }
+
+    private static void writeBlog(Output out, Blog blog) {
+        new FieldWriter(out)
+                .putLong(blog.getId())
+                .putLong(blog.getShopId())
+                .putLong(blog.getUserId())
+                .putString(blog.getIcon())
+                .putString(blog.getName())
+                .putBoolean(blog.getIsLike())
+                .putString(blog.getTitle())
+                .putString(blog.getImages())
+                .putString(blog.getContent())
+                .putInt(blog.getLiked())
+                .putInt(blog.getComments())
+                .putTime(blog.getCreateTime())
+                .putTime(blog.getUpdateTime())
+                .end();
+    }
+
+    private static Blog readBlog(Input in) {
+        FieldReader fields = new FieldReader(in);
+        return new Blog()
+                .setId(fields.getLong())
+                .setShopId(fields.getLong())
+                .setUserId(fields.getLong())
+                .setIcon(fields.getString())
+                .setName(fields.getString())
+                .setIsLike(fields.getBoolean())
+                .setTitle(fields.getString())
+                .setImages(fields.getString())
+                .setContent(fields.getString())
+                .setLiked(fields.getInt())
+                .setComments(fields.getInt())
+                .setCreateTime(fields.getTime())
+                .setUpdateTime(fields.getTime());
+    }
+
+    private static void writeUser(Output out, User user) {
+        new FieldWriter(out)
+                .putLong(user.getId())
+                .putString(user.getPhone())
+                .putString(user.getPassword())
+                .putString(user.getNickName())
+                .putString(user.getIcon())
+                .putTime(user.getCreateTime())
+                .putTime(user.getUpdateTime())
+                .end();
+    }
+
+    private static User readUser(Input in) {
+        FieldReader fields = new FieldReader(in);
+        return new User()
+                .setId(fields.getLong())
+                .setPhone(fields.getString())
+                .setPassword(fields.getString())
+                .setNickName(fields.getString())
+                .setIcon(fields.getString())
+                .setCreateTime(fields.getTime())
+                .setUpdateTime(fields.getTime());
+    }
+
+    // ---------------------------------------- 编码工具 ----------------------------------------
+
+    /**
+     * 按顺序写入对象的字段，最多16个，null字段只在掩码中记录
+     */
+    private static class FieldWriter {
+        private final Output out;
+        private final int maskPosition;
+        private int mask;
+        private int index;
+
+        FieldWriter(Output out) {
+            this.out = out;
+            this.maskPosition = out.skip(2);
+        }
+
+        FieldWriter putLong(Long value) {
+            if (present(value)) {
+                out.writeVarLong(value);
+            }
+            return this;
+        }
+
+        FieldWriter putInt(Integer value) {
+            if (present(value)) {
+                out.writeVarLong(value);
+            }
+            return this;
+        }
+
+        FieldWriter putDouble(Double value) {
+            if (present(value)) {
+                out.writeFixedLong(Double.doubleToLongBits(value));
+            }
+            return this;
+        }
+
+        FieldWriter putBoolean(Boolean value) {
+            if (present(value)) {
+                out.writeByte((byte) (value ? 1 : 0));
+            }
+            return this;
+        }
+
+        FieldWriter putString(String value) {
+            if (present(value)) {
+                out.writeString(value);
+            }
+            return this;
+        }
+
+        FieldWriter putTime(LocalDateTime value) {
+            if (present(value)) {
+                out.writeTime(value);
+            }
+            return this;
+        }
+
+        void end() {
+            out.patchShort(maskPosition, mask);
+        }
+
+        private boolean present(Object value) {
+            if (value != null) {
+                mask |= 1 << index;
+            }
+            index++;
+            return value != null;
+        }
+    }
+
+    /**
+     * 按写入的顺序读取对象的字段，掩码中没有的字段返回null
+     */
+    private static class FieldReader {
+        private final Input in;
+        private final int mask;
+        private int index;
+
+        FieldReader(Input in) {
+            this.in = in;
+            this.mask = in.readShort();
+        }
+
+        Long getLong() {
+            return present() ? in.readVarLong() : null;
+        }
+
+        Integer getInt() {
+            return present() ? (int) in.readVarLong() : null;
+        }
+
+        Double getDouble() {
+            return present() ? Double.longBitsToDouble(in.readFixedLong()) : null;
+        }
+
+        Boolean getBoolean() {
+            return present() ? in.readByte() != 0 : null;
+        }
+
+        String getString() {
+            return present() ? in.readString() : null;
+        }
+
+        LocalDateTime getTime() {
+            return present() ? in.readTime() : null;
+        }
+
+        private boolean present() {
+            return (mask & (1 << index++)) != 0;
+        }
+    }
+
+    private static class Output {
+        private byte[] buf = new byte[256];
+        private int position;
+
+        void writeByte(byte b) {
+            ensure(1);
+            buf[position++] = b;
+        }
+
+        int skip(int n) {
+            ensure(n);
+            int start = position;
+            position += n;
+            return start;
+        }
+
+        void patchShort(int at, int value) {
+            buf[at] = (byte) (value >>> 8);
+            buf[at + 1] = (byte) value;
+        }
+
+        /**
+         * zigzag变长编码，绝对值小的数（包括负数）占用字节少
+         */
+        void writeVarLong(long value) {
+            long v = (value << 1) ^ (value >> 63);
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[position++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[position++] = (byte) v;
+        }
+
+        void writeFixedLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void writeTime(LocalDateTime value) {
+            writeVarLong(value.toEpochSecond(ZoneOffset.UTC));
+            writeVarLong(value.getNano());
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, position);
+        }
+
+        private void ensure(int n) {
+            if (position + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, position + n));
+            }
+        }
+    }
+
+    private static class Input {
+        private final byte[] buf;
+        private int position;
+
+        Input(byte[] buf, int position) {
+            this.buf = buf;
+            this.position = position;
+        }
+
+        byte readByte() {
+            return buf[position++];
+        }
+
+        int readShort() {
+            return (buf[position++] & 0xFF) << 8 | buf[position++] & 0xFF;
+        }
+
+        long readVarLong() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf[position++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long readFixedLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = v << 8 | buf[position++] & 0xFF;
+            }
+            return v;
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            String value = new String(buf, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        LocalDateTime readTime() {
+            long seconds = readVarLong();
+            int nanos = (int) readVarLong();
+            return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+        }
+    }
+}
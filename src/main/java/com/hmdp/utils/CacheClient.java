@@ -1,31 +1,125 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.service.impl.ShopServiceImpl.CACHE_REBUILD_EXECUTOR;
 import static com.hmdp.utils.RedisConstants.*;
 
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
+
+    private static final Object NULL_VALUE = new Object();  // 一级缓存中表示数据库中不存在的空值
+
+    private static final Map<String, String> BLOOM_FILTERS =
+            Collections.singletonMap(CACHE_SHOP_KEY, IdBloomFilter.SHOP);    // 缓存key前缀 -> 校验id的布隆过滤器
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @Resource
+    private RedisLockClient redisLockClient;
+
+    @Resource
+    private Map<String, CacheCodec> codecs;     // Bean名称 -> 编解码器
+
+    @Value("${hmdp.cache.codec:json}")
+    private String codecName;
+
+    private CacheCodec codec;   // 缓存值的编解码器，以字节数组读写Redis
+
+    @Value("${hmdp.cache.l1.enabled:false}")
+    private boolean l1Enabled;
+
+    @Value("${hmdp.cache.l1.maximum-size:10000}")
+    private long l1MaximumSize;
+
+    @Value("${hmdp.cache.l1.ttl:5}")
+    private long l1TtlSeconds;
+
+    private Cache<String, Object> l1;   // 一级缓存，保存反序列化后的对象，未开启时为null
+
+    @Value("${hmdp.cache.single-flight-timeout:3000}")
+    private long singleFlightTimeoutMillis;     // 等待其他线程加载结果的最长时间（毫秒），超时后自己加载
+
+    private final Map<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();   // 正在从数据库加载的key
+
+    @Resource
+    private LocalKeyedLock localLocks;  // 本节点只有一个线程去竞争Redis中的重建锁
+
+    @PostConstruct
+    private void init() {
+        codec = codecs.get(codecName + "CacheCodec");
+        if (codec == null) {
+            throw new IllegalStateException("未知的缓存编解码器：" + codecName + "，可选：" + codecs.keySet());
+        }
+        if (!l1Enabled) {
+            return;
+        }
+        l1 = Caffeine.newBuilder()
+                .maximumSize(l1MaximumSize)
+                .expireAfterWrite(l1TtlSeconds, TimeUnit.SECONDS)
+                .build();
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 删除缓存，并通知所有节点删除一级缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        if (l1 != null) {
+            invalidateL1(key);
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 自己发出的消息也会收到，重复删除没有影响
+        l1.invalidate(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] rawValue = codec.encode(value);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.set(rawKey, rawValue, Expiration.from(time, unit), RedisStringCommands.SetOption.upsert()));
+        invalidateL1(key);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
@@ -34,7 +128,10 @@ public class CacheClient {
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
         // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] rawValue = codec.encode(redisData);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.set(rawKey, rawValue));
+        invalidateL1(key);
     }
 
     public <R, ID> R queryWithPassThrough(
@@ -42,36 +139,180 @@ public class CacheClient {
 
         String key = keyPrefix + id;
 
+        // 布隆过滤器判断id一定不存在时直接返回，不访问Redis和数据库，也不缓存空值
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
+
+        // 0.查询一级缓存，命中时不访问Redis，也不需要反序列化
+        Object cached = l1 == null ? null : l1.getIfPresent(key);
+        if (cached == NULL_VALUE) {
+            return null;
+        }
+        if (type.isInstance(cached)) {
+            return type.cast(cached);
+        }
+
         // 1.从redis中查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = get(key);
 
-        // 2.若redis缓存中存在商铺信息，则直接返回
-        if (StrUtil.isNotBlank(json)) {
-            return JSONUtil.toBean(json, type);
+        // 2.若redis缓存中存在商铺信息，则直接返回（无法识别的格式按未命中处理）
+        if (bytes != null && bytes.length > 0) {
+            R r = codec.decode(bytes, type);
+            if (r != null) {
+                putL1(key, r);
+                return r;
+            }
         }
 
         // 判断命中的是否是空值
-        if (json != null) {   // 命中的是空字符串
+        if (bytes != null && bytes.length == 0) {   // 命中的是空字符串
+            putL1(key, NULL_VALUE);
             // 返回一个错误信息
             return null;
         }
 
         // 3.若redis缓存中不存在商铺信息，则在数据库中查询商铺信息，并添加到redis缓存中
-        R r = dbFallback.apply(id);
+        // 【本节点同一个key的并发未命中合并为一次数据库查询，其他线程等待同一个结果】
+        return singleFlight(key, () -> {
+            // 3.1 再次查询redis：上一次加载可能在本线程查询redis之后、登记加载之前刚好完成
+            byte[] latest = get(key);
+            if (latest != null && latest.length == 0) {
+                putL1(key, NULL_VALUE);
+                return null;
+            }
+            if (latest != null) {
+                R cachedR = codec.decode(latest, type);
+                if (cachedR != null) {
+                    putL1(key, cachedR);
+                    return cachedR;
+                }
+            }
+
+            // 3.2 在数据库中查询
+            R r = dbFallback.apply(id);
+
+            // 4.不存在，返回错误
+            if (r == null) {
+                // 将空值写入redis
+                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                putL1(key, NULL_VALUE);
+                // 返回错误信息
+                return null;
+            }
+
+            // 5.存在，写入redis
+            this.set(key, r, time, unit);
+            putL1(key, r);
+
+            // 6.返回
+            return r;
+        });
+    }
+
+    public <R, ID> R queryWithMutex(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {  // 互斥锁解决缓存击穿
+
+        String key = keyPrefix + id;
 
-        // 4.不存在，返回错误
-        if (r == null) {
-            // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            // 返回错误信息
+        // 布隆过滤器判断id一定不存在时直接返回
+        if (!mightExist(keyPrefix, id)) {
             return null;
         }
 
-        // 5.存在，写入redis
-        this.set(key, r, time, unit);
+        // 1.从redis中查询缓存，命中时直接返回（无法识别的格式按未命中处理）
+        byte[] bytes = get(key);
+        if (bytes != null && bytes.length == 0) {   // 命中的是空字符串[穿透的结果]
+            return null;
+        }
+        R r = bytes == null ? null : codec.decode(bytes, type);
+        if (r != null) {
+            return r;
+        }
 
-        // 6.返回
-        return r;
+        // 2.实现缓存重建
+        // 2.1 获取互斥锁，获取失败时等待持有者释放锁的通知，不再循环休眠重试 【不指定有效期，由看门狗续期】
+        ILock lock = redisLockClient.getLock("mutex:" + key);
+        boolean isLock = false;
+        try {
+            isLock = lock.tryLock(LOCK_SHOP_TTL, -1, TimeUnit.SECONDS);
+            // 2.2 等待超时，直接查询数据库
+            if (!isLock) {
+                return dbFallback.apply(id);
+            }
+
+            // 2.3 成功，再次检查缓存，等待期间持有锁的线程可能已经完成了重建
+            bytes = get(key);
+            if (bytes != null && bytes.length == 0) {
+                return null;
+            }
+            r = bytes == null ? null : codec.decode(bytes, type);
+            if (r != null) {
+                return r;
+            }
+
+            // 2.4 在数据库中查询
+            r = dbFallback.apply(id);
+
+            // 3.不存在，将空值写入redis
+            if (r == null) {
+                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                return null;
+            }
+
+            // 4.存在，写入redis
+            this.set(key, r, time, unit);
+            return r;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待互斥锁时被中断：" + key, e);
+        } finally {
+            // 5.释放互斥锁
+            if (isLock) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 合并本节点对同一个key的并发加载：第一个线程执行loader，其他线程等待它的结果（包括异常）；
+     * 等待超过single-flight-timeout时不再等待，自己执行loader，加载者卡住（如数据库慢查询）时不会拖住所有请求
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R singleFlight(String key, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = loading.putIfAbsent(key, future);
+        if (inFlight != null) {
+            // 已经有线程在加载，等待结果
+            try {
+                return (R) inFlight.get(singleFlightTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                log.warn("等待加载超时，直接加载，key={}", key);
+                return loader.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待加载时被中断：" + key, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            // 加载完成后移除，之后的请求重新读取缓存
+            loading.remove(key, future);
+        }
     }
 
     public <R, ID> R queryWithLogicalExpire(
@@ -79,23 +320,39 @@ public class CacheClient {
 
         String key = keyPrefix + id;
 
+        // 布隆过滤器判断id一定不存在时直接返回，不访问Redis和数据库，也不缓存空值
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
+
+        // 0.查询一级缓存（保存的是data已经反序列化的RedisData），逻辑未过期时直接返回，过期后走Redis触发重建
+        Object cached = l1 == null ? null : l1.getIfPresent(key);
+        if (cached instanceof RedisData && type.isInstance(((RedisData) cached).getData())
+                && ((RedisData) cached).getExpireTime().isAfter(LocalDateTime.now())) {
+            return type.cast(((RedisData) cached).getData());
+        }
+
         // 1.从redis中查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = get(key);
 
         // 2.若redis缓存中不存在商铺信息，则直接返回 【前提场景是redis缓存中一定有数据，如做活动时访问热点数据】
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length == 0) {
             return null;
         }
 
-        // 3.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        // RedisData类中的data属性是Object类型的，反序列化后要强转为JSONObject类
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        // 3.命中，解码为RedisData，data直接解码为type（无法识别的格式按不存在处理）
+        RedisData redisData = codec.decodeWithExpire(bytes, type);
+        if (redisData == null) {
+            return null;
+        }
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
 
         // 4.判断是否过期
         if (expireTime.isAfter(LocalDateTime.now())) {
-            // 4.1 未过期，直接返回店铺信息
+            // 4.1 未过期，写入一级缓存后返回店铺信息
+            redisData.setData(r);
+            putL1(key, redisData);
             return r;
         }
 
@@ -128,14 +385,49 @@ public class CacheClient {
     }
 
 
+    private byte[] get(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    private boolean mightExist(String keyPrefix, Object id) {
+        String filter = BLOOM_FILTERS.get(keyPrefix);
+        return filter == null || !(id instanceof Long) || idBloomFilter.mightContain(filter, (Long) id);
+    }
+
+    private void invalidateL1(String key) {
+        // 只删除本节点的一级缓存，其他节点的旧值最多保留ttl
+        if (l1 != null) {
+            l1.invalidate(key);
+        }
+    }
+
+    private void putL1(String key, Object value) {
+        if (l1 != null) {
+            l1.put(key, value);
+        }
+    }
+
     private boolean tryLock(String key) {
+        // 先获取本地锁，本节点已经有线程在重建时直接返回，不访问Redis
+        if (!localLocks.tryLock(key)) {
+            return false;
+        }
         // 使用redis的 setnx 方式实现互斥锁
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+        if (!BooleanUtil.isTrue(flag)) {
+            localLocks.unlock(key);
+            return false;
+        }
+        return true;
     }
 
     private void unLock(String key) {
-        // 释放互斥锁
-        stringRedisTemplate.delete(key);
+        // 释放互斥锁，再释放本地锁
+        try {
+            stringRedisTemplate.delete(key);
+        } finally {
+            localLocks.unlock(key);
+        }
     }
 }
@@ -0,0 +1,27 @@
+package com.hmdp.utils;
+
+/**
+ * CacheClient中缓存值的编解码器，实现类注册为Bean，Bean名称为 名称 + CacheCodec，
+ * 通过 hmdp.cache.codec 选择（json、binary）
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码缓存值
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码缓存值
+     *
+     * @return 无法识别的格式（如更新版本写入的数据）返回null，调用方按未命中处理
+     */
+    <R> R decode(byte[] bytes, Class<R> type);
+
+    /**
+     * 解码逻辑过期的缓存值，data直接解码为dataType，不需要再次转换
+     *
+     * @return 无法识别的格式返回null
+     */
+    RedisData decodeWithExpire(byte[] bytes, Class<?> dataType);
+}
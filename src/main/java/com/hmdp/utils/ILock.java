@@ -1,5 +1,7 @@
 package com.hmdp.utils;
 
+import java.util.concurrent.TimeUnit;
+
 public interface ILock {
 
     /**
@@ -10,6 +12,16 @@ public interface ILock {
      */
     boolean tryLock(long timeoutSec);
 
+    /**
+     * 尝试获取锁，获取失败时最多等待waitTime
+     *
+     * @param waitTime  最长等待时间，0表示不等待
+     * @param leaseTime 锁持有的超时时间，-1表示由看门狗自动续期直到释放锁（实现不支持时使用默认超时时间）
+     * @param unit      时间单位
+     * @return true代表获取锁成功，false代表等待超时
+     */
+    boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException;
+
     /**
      * 释放锁
      */
@@ -0,0 +1,339 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.lang.hash.MurmurHash;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IUserService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY;
+
+/**
+ * 店铺、笔记、用户id的布隆过滤器，防止用不存在的id穿透缓存访问数据库
+ * <p>
+ * 1.位图保存在Redis中（bloom:name:位数:哈希函数个数），每个节点在内存中保存一份副本，查询时只访问本地副本
+ * 2.启动时分页读取表中的id构建，再与Redis中的位图按位或合并，不会丢失构建期间其他节点新增的id
+ * 3.新增时由Lua脚本设置Redis中的位并发布通知，各节点更新本地副本；定时从Redis同步一次，弥补丢失的通知
+ * 布隆过滤器不支持删除，已删除的id只会造成误判为存在，不会误判为不存在
+ */
+@Slf4j
+@Component
+public class IdBloomFilter implements MessageListener {
+
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+    public static final String USER = "user";
+
+    private static final int BUILD_PAGE_SIZE = 10000;
+
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+
+    static {
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("bloomadd.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Lazy
+    @Resource
+    private IShopService shopService;
+
+    @Lazy
+    @Resource
+    private IBlogService blogService;
+
+    @Lazy
+    @Resource
+    private IUserService userService;
+
+    @Value("${hmdp.bloom.enabled:false}")
+    private boolean enabled;
+
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;    // 每个过滤器预计的id数量，超过后误判率上升
+
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;     // 预计数量下的误判率
+
+    @Value("${hmdp.bloom.refresh-interval:60}")
+    private long refreshIntervalSeconds;    // 从Redis同步本地副本的间隔（秒）
+
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService executor;  // 构建和同步任务
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        // 1.位数 m = -n*ln(p)/(ln2)^2，按64位对齐；哈希函数个数 k = m/n*ln2
+        long numBits = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        numBits = (numBits + 63) / 64 * 64;
+        int numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        filters.put(SHOP, new Filter(SHOP, numBits, numHashes, shopService));
+        filters.put(BLOG, new Filter(BLOG, numBits, numHashes, blogService));
+        filters.put(USER, new Filter(USER, numBits, numHashes, userService));
+
+        // 2.先订阅新增通知再构建，构建期间新增的id不会遗漏
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(BLOOM_ADD_CHANNEL));
+
+        // 3.后台构建，构建完成前不拦截任何id
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "id-bloom-filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        filters.values().forEach(filter -> executor.submit(() -> build(filter)));
+        executor.scheduleWithFixedDelay(this::refresh, refreshIntervalSeconds, refreshIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * id是否可能存在：返回false时一定不存在；未开启或者还没有构建完成时返回true
+     */
+    public boolean mightContain(String name, Long id) {
+        Filter filter = filters.get(name);
+        if (filter == null || !filter.ready || id == null) {
+            return true;
+        }
+        for (long offset : offsets(filter, id)) {
+            if (!filter.get(offset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增id，在数据库写入成功之后调用
+     */
+    public void add(String name, Long id) {
+        Filter filter = filters.get(name);
+        if (filter == null || id == null) {
+            return;
+        }
+        // 1.先更新本地副本，本节点立即可以查到
+        long[] offsets = offsets(filter, id);
+        for (long offset : offsets) {
+            filter.set(offset);
+        }
+        // 2.更新Redis中的位图并通知其他节点
+        List<Object> args = new ArrayList<>(offsets.length + 1);
+        args.add(name + ":" + id);
+        for (long offset : offsets) {
+            args.add(String.valueOf(offset));
+        }
+        try {
+            stringRedisTemplate.execute(ADD_SCRIPT, Arrays.asList(filter.key, BLOOM_ADD_CHANNEL), args.toArray());
+        } catch (Exception e) {
+            // 数据已经写入数据库，这里不影响新增的结果；其他节点在重启构建之前可能查不到该id
+            log.error("布隆过滤器新增id失败，{}:{}", name, id, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 自己发出的消息也会收到，重复设置没有影响
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int i = body.indexOf(':');
+        Filter filter = i < 0 ? null : filters.get(body.substring(0, i));
+        if (filter == null) {
+            log.warn("无法解析的布隆过滤器消息：{}", body);
+            return;
+        }
+        for (long offset : offsets(filter, Long.parseLong(body.substring(i + 1)))) {
+            filter.set(offset);
+        }
+    }
+
+    private void build(Filter filter) {
+        long begin = System.currentTimeMillis();
+        try {
+            // 1.分页读取表中所有id，构建到本地副本
+            long count = 0;
+            long lastId = 0;
+            List<Long> ids;
+            do {
+                ids = pageIds(filter.service, lastId);
+                for (Long id : ids) {
+                    for (long offset : offsets(filter, id)) {
+                        filter.set(offset);
+                    }
+                    lastId = id;
+                }
+                count += ids.size();
+            } while (ids.size() == BUILD_PAGE_SIZE);
+            if (count > expectedInsertions) {
+                log.warn("布隆过滤器{}中的id数量{}超过预计的{}，误判率会高于{}", filter.name, count, expectedInsertions, fpp);
+            }
+
+            // 2.写入临时key，再与Redis中的位图按位或合并 bitop or key key tmp，保留其他节点设置的位
+            byte[] key = filter.key.getBytes(StandardCharsets.UTF_8);
+            byte[] tmp = (filter.key + ":build:" + UUID.randomUUID().toString(true)).getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = filter.toBytes();
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                connection.set(tmp, bytes, Expiration.seconds(600), RedisStringCommands.SetOption.upsert());
+                connection.bitOp(RedisStringCommands.BitOperation.OR, key, key, tmp);
+                connection.del(tmp);
+                return null;
+            });
+
+            // 3.从Redis同步一次合并后的位图，开始拦截
+            sync(filter);
+            filter.ready = true;
+            log.info("布隆过滤器{}构建完成，id数量{}，位数{}，哈希函数{}个，耗时{}ms",
+                    filter.name, count, filter.numBits, filter.numHashes, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            // 构建失败时不拦截，下次同步时重试
+            log.error("布隆过滤器{}构建失败", filter.name, e);
+        }
+    }
+
+    private void refresh() {
+        for (Filter filter : filters.values()) {
+            if (!filter.ready) {
+                build(filter);
+                continue;
+            }
+            try {
+                sync(filter);
+            } catch (Exception e) {
+                log.warn("布隆过滤器{}同步失败", filter.name, e);
+            }
+        }
+    }
+
+    /**
+     * 把Redis中的位图合并到本地副本，位只会增加，不会清除
+     */
+    private void sync(Filter filter) {
+        byte[] key = filter.key.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(key));
+        if (bytes != null) {
+            filter.merge(bytes);
+        }
+    }
+
+    private static <T> List<Long> pageIds(IService<T> service, long lastId) {
+        // select id from tb_xxx where id > ? order by id limit 10000
+        List<Object> objs = service.listObjs(new QueryWrapper<T>()
+                .select("id").gt("id", lastId).orderByAsc("id").last("limit " + BUILD_PAGE_SIZE));
+        List<Long> ids = new ArrayList<>(objs.size());
+        objs.forEach(obj -> ids.add(((Number) obj).longValue()));
+        return ids;
+    }
+
+    /**
+     * id对应的k个位偏移量：murmur3 128位哈希拆成两个64位值，第i个位置为 h1 + i*h2（Kirsch-Mitzenmacher）
+     */
+    private static long[] offsets(Filter filter, long id) {
+        long[] hash = MurmurHash.hash128(String.valueOf(id));
+        long[] offsets = new long[filter.numHashes];
+        long combined = hash[0];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = (combined & Long.MAX_VALUE) % filter.numBits;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+
+    /**
+     * 一个布隆过滤器的本地副本，位的顺序与Redis相同：偏移量0为第一个字节的最高位
+     */
+    private static class Filter {
+        final String name;
+        final String key;
+        final long numBits;
+        final int numHashes;
+        final IService<?> service;
+        final AtomicLongArray words;
+        volatile boolean ready;
+
+        Filter(String name, long numBits, int numHashes, IService<?> service) {
+            this.name = name;
+            // 位数和哈希函数个数不同的位图不能合并，放在key中，修改配置后使用新的位图
+            this.key = BLOOM_KEY + name + ":" + numBits + ":" + numHashes;
+            this.numBits = numBits;
+            this.numHashes = numHashes;
+            this.service = service;
+            this.words = new AtomicLongArray((int) (numBits / 64));
+        }
+
+        boolean get(long offset) {
+            return (words.get((int) (offset >>> 6)) & mask(offset)) != 0;
+        }
+
+        void set(long offset) {
+            long mask = mask(offset);
+            words.accumulateAndGet((int) (offset >>> 6), mask, (word, m) -> word | m);
+        }
+
+        void merge(byte[] bytes) {
+            // 只有setbit设置过的位图可能比本地短，按本地长度补0
+            ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOf(bytes, words.length() * 8));
+            for (int i = 0; i < words.length(); i++) {
+                long word = buffer.getLong();
+                if (word != 0) {
+                    words.accumulateAndGet(i, word, (w, m) -> w | m);
+                }
+            }
+        }
+
+        byte[] toBytes() {
+            ByteBuffer buffer = ByteBuffer.allocate(words.length() * 8);
+            for (int i = 0; i < words.length(); i++) {
+                buffer.putLong(words.get(i));
+            }
+            return buffer.array();
+        }
+
+        private static long mask(long offset) {
+            return 1L << (63 - (offset & 63));
+        }
+    }
+}
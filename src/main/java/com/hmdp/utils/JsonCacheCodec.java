@@ -0,0 +1,48 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON编解码（Hutool），与之前直接写入字符串的格式相同
+ */
+@Slf4j
+@Component
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        try {
+            return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+        } catch (RuntimeException e) {
+            // 不是合法的JSON（如损坏或其他格式写入的数据），按未命中处理
+            log.warn("无法解析的JSON缓存，按未命中处理，type={}", type.getSimpleName(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public RedisData decodeWithExpire(byte[] bytes, Class<?> dataType) {
+        // RedisData类中的data属性是Object类型的，反序列化后是JSONObject，需要再转换一次
+        RedisData redisData = decode(bytes, RedisData.class);
+        if (redisData == null || redisData.getExpireTime() == null || !(redisData.getData() instanceof JSONObject)) {
+            return null;
+        }
+        try {
+            redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), dataType));
+            return redisData;
+        } catch (RuntimeException e) {
+            log.warn("无法解析的JSON缓存，按未命中处理，type={}", dataType.getSimpleName(), e);
+            return null;
+        }
+    }
+}
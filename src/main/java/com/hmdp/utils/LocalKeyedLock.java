@@ -0,0 +1,88 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JVM本地的按key互斥锁，放在分布式锁前面：同一个key在本节点只有一个线程去竞争Redis中的锁，
+ * 其他线程在本地等待或直接返回，Redis中的加锁请求数与节点数相关，而与线程数无关
+ * <p>
+ * 基于Semaphore实现，允许由其他线程释放（如缓存重建在线程池中完成后释放）；没有线程使用的key会被移除
+ * <p>
+ * 整个节点共用一个实例（RedisLockClient、SimpleRedisLock、CacheClient），同一个锁的key不论通过哪种锁获取都在本地互斥
+ */
+@Component
+public class LocalKeyedLock {
+
+    private final Map<String, Permit> permits = new ConcurrentHashMap<>();
+
+    /**
+     * 尝试获取本地锁，不等待
+     */
+    public boolean tryLock(String key) {
+        Permit permit = retain(key);
+        boolean success = permit.semaphore.tryAcquire();
+        if (!success) {
+            release(key, false);
+        }
+        return success;
+    }
+
+    /**
+     * 尝试获取本地锁，最多等待timeout
+     */
+    public boolean tryLock(String key, long timeout, TimeUnit unit) throws InterruptedException {
+        Permit permit = retain(key);
+        boolean success = false;
+        try {
+            success = permit.semaphore.tryAcquire(timeout, unit);
+            return success;
+        } finally {
+            if (!success) {
+                release(key, false);
+            }
+        }
+    }
+
+    /**
+     * 释放本地锁，只能在tryLock成功之后调用一次
+     */
+    public void unlock(String key) {
+        release(key, true);
+    }
+
+    /**
+     * 有线程持有或正在等待的key数
+     */
+    int size() {
+        return permits.size();
+    }
+
+    private Permit retain(String key) {
+        return permits.compute(key, (k, permit) -> {
+            if (permit == null) {
+                permit = new Permit();
+            }
+            permit.refs++;
+            return permit;
+        });
+    }
+
+    private void release(String key, boolean unlock) {
+        permits.computeIfPresent(key, (k, permit) -> {
+            if (unlock) {
+                permit.semaphore.release();
+            }
+            return --permit.refs == 0 ? null : permit;
+        });
+    }
+
+    private static class Permit {
+        final Semaphore semaphore = new Semaphore(1);
+        int refs;   // 持有或正在等待该key的线程数，在compute中修改
+    }
+}
@@ -0,0 +1,45 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁的本地令牌桶（GCRA算法）
+ * 只记录"理论到达时间"一个状态，用CAS更新，不需要定时补充令牌
+ */
+public class LocalTokenBucket {
+
+    private final long intervalNanos;   // 生成一个令牌的间隔
+    private final long burstNanos;      // 桶容量对应的时间，桶满时最多允许的突发请求数 = burstNanos / intervalNanos
+    private final AtomicLong tat;       // 理论到达时间，早于当前时间说明桶是满的
+
+    /**
+     * @param permitsPerSecond 每秒生成的令牌数
+     * @param burst            桶容量
+     */
+    public LocalTokenBucket(long permitsPerSecond, long burst) {
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.burstNanos = intervalNanos * Math.max(burst, 1);
+        this.tat = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * 尝试获取一个令牌，不等待
+     *
+     * @return true代表获取成功
+     */
+    public boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long current = tat.get();
+            long next = Math.max(current, now) + intervalNanos;
+            if (next - now > burstNanos) {
+                // 令牌不足
+                return false;
+            }
+            if (tat.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+}
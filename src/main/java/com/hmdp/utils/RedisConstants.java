@@ -13,10 +13,30 @@ public class RedisConstants {
 
     public static final String CACHE_SHOP_TYPE_LIST_KEY = "cache:shopType:";
 
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_RELEASED_CHANNEL = "lock:released:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_TIME_KEY = "seckill:time:";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_RESULT_KEY = "seckill:result:";
+    public static final Long SECKILL_RESULT_TTL = 10L;
+    public static final String SECKILL_RESULT_CHANNEL = "seckill:result";
+    public static final String SECKILL_OWNER_KEY = "seckill:owner:";
+    public static final Long SECKILL_OWNER_TTL = 60L;
+    public static final String SECKILL_TIMEOUT_KEY = "seckill:timeout";
+    public static final String SECKILL_JOURNAL_KEY = "seckill:journal";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
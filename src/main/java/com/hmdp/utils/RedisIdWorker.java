@@ -1,13 +1,32 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.util.BooleanUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
 
@@ -20,26 +39,350 @@ public class RedisIdWorker {
      */
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * snowflake模式：workerId的位数和序列号的位数，[符号位-时间戳(32bit)-workerId(10bit)-序列号(22bit)]
+     */
+    private static final int WORKER_ID_BITS = 10;
+    private static final int SEQUENCE_BITS = COUNT_BITS - WORKER_ID_BITS;
+    private static final long MAX_WORKER_ID = (1L << WORKER_ID_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    private static final String WORKER_LEASE_KEY = "idworker:worker:";
+    private static final String WORKER_LAST_KEY = "idworker:last:";
+
+    private static final DefaultRedisScript<Long> WORKER_RENEW_SCRIPT;
+
+    static {
+        WORKER_RENEW_SCRIPT = new DefaultRedisScript<>();
+        WORKER_RENEW_SCRIPT.setLocation(new ClassPathResource("workerrenew.lua"));
+        WORKER_RENEW_SCRIPT.setResultType(Long.class);
+    }
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Value("${hmdp.id-worker.mode:incr}")
+    private String mode;    // incr：每个id一次INCR；segment：每次INCRBY租用一段序列号，在本地分配
+
+    @Value("${hmdp.id-worker.segment-size:1000}")
+    private int segmentSize;    // 每段序列号的数量
+
+    @Value("${hmdp.id-worker.prefetch-ratio:0.2}")
+    private double prefetchRatio;   // 当前段剩余的比例低于该值时异步预取下一段
+
+    @Value("${hmdp.id-worker.worker-lease:30}")
+    private long workerLeaseSeconds;    // workerId租约的有效期（秒），每1/3有效期续期一次
+
+    @Value("${hmdp.id-worker.max-backward:5}")
+    private long maxBackwardSeconds;    // 允许的最大时钟回拨（秒），回拨期间沿用上一次的时间戳，超过后拒绝生成id
+
+    private final String owner = UUID.randomUUID().toString();  // 本节点的租约持有者标识
+
+    private volatile WorkerLease lease;     // snowflake模式当前持有的workerId租约
+
+    private ScheduledExecutorService leaseExecutor;     // 续期workerId租约的线程
+
+    private volatile Day today = new Day(Long.MIN_VALUE, 0, null);   // 缓存当天的日期字符串，跨天时才重新格式化
+
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();   // 业务前缀 -> 号段
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RedisIdWorker() {
+    }
+
+    /**
+     * snowflake模式，直接使用给定的workerId租约，不访问Redis也不续期
+     */
+    RedisIdWorker(long maxBackwardSeconds, WorkerLease lease) {
+        this.mode = "snowflake";
+        this.maxBackwardSeconds = maxBackwardSeconds;
+        this.lease = lease;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!"snowflake".equals(mode)) {
+            return;
+        }
+        // 启动时租用workerId，之后在后台续期
+        lease = acquireWorkerId();
+        leaseExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "id-worker-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(workerLeaseSeconds / 3, 1);
+        leaseExecutor.scheduleWithFixedDelay(this::renewWorkerId, period, period, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+        if (leaseExecutor != null) {
+            leaseExecutor.shutdownNow();
+        }
+    }
+
     public long nextId(String keyPrefix){
-        // 1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        if ("snowflake".equals(mode)) {
+            // snowflake模式：不访问Redis，id全局唯一，与业务前缀无关
+            return nextSnowflakeId();
+        }
+        // 1.生成时间戳（当地时间的秒数，与LocalDateTime.now().toEpochSecond(ZoneOffset.UTC)一致）
+        long timestamp = currentTimestamp();
+        Day day = today;
 
         // 2.生成序列号
-        // 2.1 获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 2.2 自增长
         // "icr:" 表示自增，keyPrefix是代表业务的前缀，date是当前日期的字符串 【每天的key都不一样，保证key对应的值不超过redis上限】
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count;
+        if ("segment".equals(mode)) {
+            // 2.1 号段模式：从本地号段中分配，两种模式使用同一个key，切换模式不会产生重复id
+            count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(day);
+        } else {
+            // 2.2 自增长
+            count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + day.date);
+        }
 
         // 3.拼接并返回  [符号位-时间戳(32bit)-序列号(32bit)]
         return timestamp << COUNT_BITS | count;
     }
 
+    /**
+     * 当前时间戳（当地时间的秒数 - BEGIN_TIMESTAMP）
+     */
+    long currentTimestamp() {
+        Day day = today;
+        long nowSecond = System.currentTimeMillis() / 1000 + day.offsetSeconds;
+        if (Math.floorDiv(nowSecond, 86400) != day.epochDay) {
+            day = switchDay();
+            nowSecond = System.currentTimeMillis() / 1000 + day.offsetSeconds;
+        }
+        return nowSecond - BEGIN_TIMESTAMP;
+    }
+
+    private long nextSnowflakeId() {
+        WorkerLease current = lease;
+        if (current == null || System.currentTimeMillis() > current.deadline) {
+            // 租约过期后workerId可能已经被其他节点使用，不能继续生成
+            throw new IllegalStateException("workerId租约已过期，暂时无法生成id");
+        }
+        long now = currentTimestamp();
+        while (true) {
+            long state = current.state.get();
+            long last = state >>> SEQUENCE_BITS;
+            long sequence = state & MAX_SEQUENCE;
+            long timestamp;
+            if (now > last) {
+                // 1.进入新的一秒，序列号从0开始
+                timestamp = now;
+                sequence = 0;
+            } else {
+                // 2.同一秒内或者时钟回拨：沿用上一次的时间戳，保证id不重复且递增
+                if (last - now > maxBackwardSeconds) {
+                    throw new IllegalStateException("时钟回拨" + (last - now) + "秒，拒绝生成id");
+                }
+                if (sequence < MAX_SEQUENCE) {
+                    timestamp = last;
+                    sequence++;
+                } else {
+                    // 这一秒的序列号用完，借用下一秒
+                    timestamp = last + 1;
+                    sequence = 0;
+                }
+            }
+            if (current.state.compareAndSet(state, timestamp << SEQUENCE_BITS | sequence)) {
+                // 3.拼接并返回 [符号位-时间戳(32bit)-workerId(10bit)-序列号(22bit)]
+                return timestamp << COUNT_BITS | current.workerId << SEQUENCE_BITS | sequence;
+            }
+        }
+    }
+
+    /**
+     * 租用一个空闲的workerId：SET idworker:worker:{id} owner NX EX lease
+     */
+    private WorkerLease acquireWorkerId() {
+        long start = ThreadLocalRandom.current().nextLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long workerId = (start + i) & MAX_WORKER_ID;
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(workerLeaseSeconds);
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(WORKER_LEASE_KEY + workerId, owner, workerLeaseSeconds, TimeUnit.SECONDS);
+            if (!BooleanUtil.isTrue(success)) {
+                continue;
+            }
+            // 上一个持有者最后一次续期后，最多还会使用一个续期间隔，从这之后开始生成id
+            String last = stringRedisTemplate.opsForValue().get(WORKER_LAST_KEY + workerId);
+            long floor = last == null ? 0 : Long.parseLong(last) + Math.max(workerLeaseSeconds / 3, 1);
+            log.info("租用workerId成功，workerId={}", workerId);
+            return new WorkerLease(workerId, Math.max(floor, currentTimestamp() - 1), deadline);
+        }
+        throw new IllegalStateException("没有空闲的workerId");
+    }
+
+    private void renewWorkerId() {
+        try {
+            WorkerLease current = lease;
+            if (current != null) {
+                long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(workerLeaseSeconds);
+                String last = String.valueOf(current.state.get() >>> SEQUENCE_BITS);
+                Long renewed = stringRedisTemplate.execute(WORKER_RENEW_SCRIPT,
+                        Arrays.asList(WORKER_LEASE_KEY + current.workerId, WORKER_LAST_KEY + current.workerId),
+                        owner, String.valueOf(workerLeaseSeconds), last);
+                if (renewed != null && renewed == 1) {
+                    current.deadline = deadline;
+                    return;
+                }
+                log.error("workerId租约已被其他节点持有，重新租用，workerId={}", current.workerId);
+            }
+            // 租约丢失（如Redis中断超过租期），重新租用一个workerId
+            lease = acquireWorkerId();
+        } catch (Exception e) {
+            // Redis短暂不可用时租约仍在有效期内，继续生成id，下次再续期
+            log.warn("续期workerId租约失败", e);
+        }
+    }
+
+    private synchronized Day switchDay() {
+        Instant now = Instant.now();
+        int offsetSeconds = ZoneId.systemDefault().getRules().getOffset(now).getTotalSeconds();
+        long epochDay = Math.floorDiv(now.getEpochSecond() + offsetSeconds, 86400);
+        if (today.epochDay != epochDay) {
+            today = new Day(epochDay, offsetSeconds, LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER));
+        }
+        return today;
+    }
+
+    /**
+     * 当天的日期和时区偏移
+     */
+    private static class Day {
+        final long epochDay;
+        final int offsetSeconds;
+        final String date;  // yyyy:MM:dd
+
+        Day(long epochDay, int offsetSeconds, String date) {
+            this.epochDay = epochDay;
+            this.offsetSeconds = offsetSeconds;
+            this.date = date;
+        }
+    }
+
+    /**
+     * snowflake模式的workerId租约，state中保存上一次使用的 时间戳 << SEQUENCE_BITS | 序列号
+     */
+    static class WorkerLease {
+        final long workerId;
+        final AtomicLong state;
+        volatile long deadline;     // 租约到期时间（毫秒）
+
+        WorkerLease(long workerId, long lastTimestamp, long deadline) {
+            this.workerId = workerId;
+            // 序列号置为最大值，第一个id从lastTimestamp的下一秒开始
+            this.state = new AtomicLong(lastTimestamp << SEQUENCE_BITS | MAX_SEQUENCE);
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * 一段序列号 [cursor, max]，多线程通过getAndIncrement无锁分配
+     */
+    private static class Segment {
+        final long epochDay;
+        final AtomicLong cursor;
+        final long max;
+        final long prefetchAt;  // 分配到该序列号时触发预取
+
+        Segment(long epochDay, long min, long max, long prefetchAt) {
+            this.epochDay = epochDay;
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    /**
+     * 某个业务前缀的双缓冲号段：当前段用完前异步预取下一段，跨天时丢弃旧的号段
+     */
+    private class SegmentBuffer {
+
+        private final String keyPrefix;
+
+        private volatile Segment current = new Segment(Long.MIN_VALUE, 1, 0, 0);   // 空号段
+
+        private volatile Segment next;  // 预取的下一段
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(Day day) {
+            Segment segment = current;
+            if (segment.epochDay == day.epochDay) {
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.max) {
+                    if (count == segment.prefetchAt) {
+                        // 每段只有一个线程会分配到prefetchAt，只触发一次预取
+                        prefetch(day);
+                    }
+                    return count;
+                }
+            }
+            // 当前段已用完或者已经跨天
+            return nextSlow(day);
+        }
+
+        private synchronized long nextSlow(Day day) {
+            while (true) {
+                Segment segment = current;
+                if (segment.epochDay == day.epochDay) {
+                    long count = segment.cursor.getAndIncrement();
+                    if (count <= segment.max) {
+                        return count;
+                    }
+                }
+                // 优先使用预取的号段，没有预取到或者不是当天的号段时同步租用
+                Segment prefetched = next;
+                next = null;
+                current = prefetched != null && prefetched.epochDay == day.epochDay ? prefetched : lease(day);
+            }
+        }
+
+        private void prefetch(Day day) {
+            try {
+                prefetchExecutor.execute(() -> {
+                    try {
+                        next = lease(day);
+                    } catch (Exception e) {
+                        // 预取失败时，当前段用完后会同步租用
+                        log.warn("预取id号段失败，keyPrefix={}", keyPrefix, e);
+                    }
+                });
+            } catch (Exception e) {
+                log.warn("提交id号段预取任务失败，keyPrefix={}", keyPrefix, e);
+            }
+        }
+
+        /**
+         * INCRBY icr:keyPrefix:date segmentSize，得到 [end - segmentSize + 1, end]
+         */
+        private Segment lease(Day day) {
+            Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + day.date, segmentSize);
+            if (end == null) {
+                throw new IllegalStateException("租用id号段失败，keyPrefix=" + keyPrefix);
+            }
+            long min = end - segmentSize + 1;
+            long prefetchAt = end - (long) (segmentSize * prefetchRatio);
+            return new Segment(day.epochDay, min, end, Math.max(prefetchAt, min));
+        }
+    }
+
 
 /*    public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2022, 1, 1, 0, 0, 0);
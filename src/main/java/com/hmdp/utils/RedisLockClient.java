@@ -0,0 +1,265 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_RELEASED_CHANNEL;
+
+/**
+ * 可重入分布式锁的工厂：有线程等待某个锁时才订阅这个锁的释放频道，共用一个看门狗线程为锁续期，
+ * 共用一个本地锁，同一个锁在本节点只有一个线程去竞争Redis
+ */
+@Slf4j
+@Component
+public class RedisLockClient {
+
+    static final String KEY_PREFIX = "lock:";
+    static final long WATCHDOG_LEASE_MILLIS = 30_000;  // 看门狗模式下锁的有效期，每1/3有效期续期一次
+
+    static final DefaultRedisScript<Long> LOCK_SCRIPT;
+    static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+
+    static {
+        LOCK_SCRIPT = new DefaultRedisScript<>();
+        LOCK_SCRIPT.setLocation(new ClassPathResource("reentrantlock.lua"));
+        LOCK_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("reentrantunlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("reentrantrenew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final String id = UUID.randomUUID().toString(true);    // 本节点标识，线程标识为 id:threadId
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private final Map<String, WaitEntry> waiting = new ConcurrentHashMap<>();   // 锁的key -> 本节点等待该锁的线程
+
+    private final Map<String, RenewalEntry> renewals = new ConcurrentHashMap<>();   // 锁的key:线程标识 -> 看门狗任务
+
+    @Resource
+    private LocalKeyedLock localLocks;
+
+    private final Map<String, Integer> localHolds = new ConcurrentHashMap<>();  // 锁的key:线程标识 -> 本地锁的重入次数
+
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "redis-lock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    private void destroy() {
+        watchdog.shutdownNow();
+    }
+
+    /**
+     * 获取锁对象，锁的key为 lock:name
+     */
+    public ILock getLock(String name) {
+        return new RedisReentrantLock(KEY_PREFIX + name, this);
+    }
+
+    StringRedisTemplate getStringRedisTemplate() {
+        return stringRedisTemplate;
+    }
+
+    LocalKeyedLock getLocalLocks() {
+        return localLocks;
+    }
+
+    /**
+     * 锁的释放频道 lock:released:{key}，以锁的key作为hash tag，Redis Cluster中与锁在同一个slot，解锁脚本可以声明在KEYS中
+     */
+    static String releasedChannel(String key) {
+        return LOCK_RELEASED_CHANNEL + "{" + key + "}";
+    }
+
+    String threadId() {
+        return id + ":" + Thread.currentThread().getId();
+    }
+
+    /**
+     * 获取本地锁，本节点的其他线程在本地等待，不访问Redis；已持有本地锁的线程重入时只增加计数
+     *
+     * @param waitMillis 最多等待的时间，0表示不等待
+     */
+    boolean lockLocal(String key, String threadId, long waitMillis) throws InterruptedException {
+        String holdKey = key + ":" + threadId;
+        if (localHolds.computeIfPresent(holdKey, (k, holds) -> holds + 1) != null) {
+            return true;
+        }
+        boolean success = waitMillis > 0
+                ? localLocks.tryLock(key, waitMillis, TimeUnit.MILLISECONDS)
+                : localLocks.tryLock(key);
+        if (success) {
+            localHolds.put(holdKey, 1);
+        }
+        return success;
+    }
+
+    /**
+     * 释放一层本地锁，全部释放后唤醒本节点等待的线程
+     */
+    void unlockLocal(String key, String threadId) {
+        localHolds.computeIfPresent(key + ":" + threadId, (k, holds) -> {
+            if (holds > 1) {
+                return holds - 1;
+            }
+            localLocks.unlock(key);
+            return null;
+        });
+    }
+
+    /**
+     * 开始等待锁，必须在重试加锁之前登记，避免错过释放锁的通知；返回后必须调用unsubscribe
+     * <p>
+     * 本节点第一个等待该锁的线程订阅它的释放频道，最后一个线程离开时取消订阅，其他锁的释放不会发到本节点；
+     * 订阅是一次网络往返，在compute之外执行，不占用ConcurrentHashMap的桶锁。每一轮等待使用自己的WaitEntry作为监听器，
+     * 上一轮取消订阅和下一轮订阅交错时只移除上一轮的监听器
+     */
+    Semaphore subscribe(String key) throws InterruptedException {
+        WaitEntry created = new WaitEntry(key);
+        WaitEntry entry = waiting.compute(key, (k, e) -> {
+            if (e == null) {
+                e = created;
+            }
+            e.waiters++;
+            return e;
+        });
+        if (entry == created) {
+            try {
+                // 容器已在监听时同步订阅，返回时Redis已确认订阅
+                redisMessageListenerContainer.addMessageListener(entry, new ChannelTopic(releasedChannel(key)));
+            } catch (RuntimeException e) {
+                unsubscribe(key);
+                throw e;
+            } finally {
+                entry.subscribed.countDown();
+            }
+        } else {
+            // 其他线程正在订阅，等它确认后再重试加锁，避免错过订阅完成之前的释放通知
+            try {
+                entry.subscribed.await();
+            } catch (InterruptedException e) {
+                unsubscribe(key);
+                throw e;
+            }
+        }
+        return entry.semaphore;
+    }
+
+    void unsubscribe(String key) {
+        WaitEntry[] removed = new WaitEntry[1];
+        waiting.computeIfPresent(key, (k, entry) -> {
+            if (--entry.waiters > 0) {
+                return entry;
+            }
+            removed[0] = entry;
+            return null;
+        });
+        if (removed[0] != null) {
+            redisMessageListenerContainer.removeMessageListener(removed[0], new ChannelTopic(releasedChannel(key)));
+        }
+    }
+
+    /**
+     * 看门狗：第一次获取锁时开始续期，重入时只增加计数
+     */
+    void startRenewal(String key, String threadId) {
+        renewals.compute(key + ":" + threadId, (k, entry) -> {
+            if (entry == null) {
+                entry = new RenewalEntry();
+                long period = WATCHDOG_LEASE_MILLIS / 3;
+                entry.future = watchdog.scheduleWithFixedDelay(() -> renew(key, threadId),
+                        period, period, TimeUnit.MILLISECONDS);
+            }
+            entry.holds++;
+            return entry;
+        });
+    }
+
+    /**
+     * 释放一层锁时减少计数，全部释放后停止续期
+     */
+    void stopRenewal(String key, String threadId, boolean released) {
+        renewals.computeIfPresent(key + ":" + threadId, (k, entry) -> {
+            if (released || --entry.holds == 0) {
+                entry.future.cancel(false);
+                return null;
+            }
+            return entry;
+        });
+    }
+
+    private void renew(String key, String threadId) {
+        try {
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(key),
+                    String.valueOf(WATCHDOG_LEASE_MILLIS), threadId);
+            if (renewed == null || renewed == 0) {
+                // 锁已经不属于该线程（如超时被释放），停止续期
+                stopRenewal(key, threadId, true);
+            }
+        } catch (Exception e) {
+            // Redis短暂不可用时下次再续期，锁的有效期足够覆盖两次续期
+            log.warn("锁续期失败，key={}", key, e);
+        }
+    }
+
+    /**
+     * 本节点等待某个锁的线程，同时是该锁释放频道的监听器
+     */
+    private class WaitEntry implements MessageListener {
+        final String key;
+        final Semaphore semaphore = new Semaphore(0);
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        int waiters;    // 只在compute中修改
+
+        WaitEntry(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void onMessage(Message message, byte[] pattern) {
+            // 每次释放唤醒一个等待线程，许可数不超过等待线程数：等待线程重试期间到达的多次通知不会累积，醒来后不会空转重试
+            waiting.computeIfPresent(key, (k, entry) -> {
+                if (entry == this && semaphore.availablePermits() < waiters) {
+                    semaphore.release();
+                }
+                return entry;
+            });
+        }
+    }
+
+    private static class RenewalEntry {
+        ScheduledFuture<?> future;
+        int holds;
+    }
+}
@@ -0,0 +1,148 @@
+package com.hmdp.utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可重入分布式锁（参考Redisson）：
+ * 1.hash结构记录持有锁的线程和重入次数
+ * 2.获取锁失败时订阅该锁的释放频道，收到通知或者锁的有效期到了再重试，不需要循环休眠
+ * 3.不指定有效期时由看门狗自动续期，直到释放锁
+ * 4.前面有一把本地锁，同一个锁在本节点只有一个线程去竞争Redis，其他线程在本地等待
+ * 通过 RedisLockClient.getLock(name) 获取
+ */
+public class RedisReentrantLock implements ILock {
+
+    private final String key;   // 锁的key
+    private final RedisLockClient client;
+    private volatile long lockLeaseMillis = RedisLockClient.WATCHDOG_LEASE_MILLIS;   // 最近一次获取锁时的有效期，释放一层锁时用它重置有效期
+
+    RedisReentrantLock(String key, RedisLockClient client) {
+        this.key = key;
+        this.client = client;
+    }
+
+    @Override
+    public boolean tryLock(long timeoutSec) {
+        // 不等待，本节点已经有线程持有或正在竞争该锁时直接返回，不访问Redis
+        String threadId = client.threadId();
+        try {
+            if (!client.lockLocal(key, threadId, 0)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            // 不等待时不会被中断
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        boolean success = false;
+        try {
+            success = tryAcquire(TimeUnit.SECONDS.toMillis(timeoutSec), threadId) == null;
+            return success;
+        } finally {
+            if (!success) {
+                client.unlockLocal(key, threadId);
+            }
+        }
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        String threadId = client.threadId();
+        long leaseMillis = leaseTime > 0 ? unit.toMillis(leaseTime) : -1;
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+
+        // 1.本节点的其他线程在本地等待，只有拿到本地锁的线程去Redis中竞争
+        if (!client.lockLocal(key, threadId, unit.toMillis(waitTime))) {
+            return false;
+        }
+        boolean success = false;
+        try {
+            success = tryAcquire(leaseMillis, threadId, deadline);
+            return success;
+        } finally {
+            if (!success) {
+                client.unlockLocal(key, threadId);
+            }
+        }
+    }
+
+    /**
+     * 与其他节点竞争Redis中的锁，最多等到deadline
+     */
+    private boolean tryAcquire(long leaseMillis, String threadId, long deadline) throws InterruptedException {
+        // 2.尝试获取锁，成功返回null，失败返回锁的剩余有效期
+        Long ttl = tryAcquire(leaseMillis, threadId);
+        if (ttl == null) {
+            return true;
+        }
+        if (deadline <= System.currentTimeMillis()) {
+            return false;
+        }
+
+        // 3.登记等待，释放锁的通知到达时被唤醒
+        Semaphore semaphore = client.subscribe(key);
+        try {
+            while (true) {
+                // 3.1 登记之后再试一次，避免在登记之前锁刚好被释放
+                ttl = tryAcquire(leaseMillis, threadId);
+                if (ttl == null) {
+                    return true;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                // 3.2 等待释放锁的通知，最多等到锁过期（持有者宕机时没有通知）或者等待超时
+                long wait = ttl >= 0 ? Math.min(ttl, remaining) : remaining;
+                semaphore.tryAcquire(wait, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            client.unsubscribe(key);
+        }
+    }
+
+    /**
+     * 执行加锁脚本
+     *
+     * @param leaseMillis 锁的有效期，-1表示使用看门狗
+     * @return null代表获取锁成功，否则为锁的剩余有效期（毫秒）
+     */
+    private Long tryAcquire(long leaseMillis, String threadId) {
+        boolean watchdog = leaseMillis <= 0;
+        Long ttl = client.getStringRedisTemplate().execute(
+                RedisLockClient.LOCK_SCRIPT,
+                Collections.singletonList(key),
+                String.valueOf(watchdog ? RedisLockClient.WATCHDOG_LEASE_MILLIS : leaseMillis), threadId
+        );
+        if (ttl == null) {
+            lockLeaseMillis = watchdog ? RedisLockClient.WATCHDOG_LEASE_MILLIS : leaseMillis;
+            if (watchdog) {
+                client.startRenewal(key, threadId);
+            }
+        }
+        return ttl;
+    }
+
+    @Override
+    public void unlock() {
+        String threadId = client.threadId();
+        try {
+            // 释放一层锁，全部释放后通知其他节点等待的线程
+            Long result = client.getStringRedisTemplate().execute(
+                    RedisLockClient.UNLOCK_SCRIPT,
+                    Arrays.asList(key, RedisLockClient.releasedChannel(key)),
+                    String.valueOf(lockLeaseMillis), threadId
+            );
+            if (result == null) {
+                throw new IllegalMonitorStateException("当前线程没有持有锁：" + key);
+            }
+            client.stopRenewal(key, threadId, result == 1);
+        } finally {
+            // 释放一层本地锁，全部释放后唤醒本节点等待的线程 【锁已过期时也要释放，否则本节点再也拿不到这把锁】
+            client.unlockLocal(key, threadId);
+        }
+    }
+}
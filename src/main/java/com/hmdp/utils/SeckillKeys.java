@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_TIMEOUT_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_TIME_KEY;
+
+/**
+ * 秒杀的分片key：订单消息队列和未支付超时索引都按优惠券id哈希分片，同一张券的订单总是落在同一个分片
+ * <p>
+ * 所有key都带有分片号作为hash tag（如 seckill:stock:{2}:10、stream.orders:{2}），
+ * Redis Cluster中一张券的库存、下单用户、时间窗口和它所在的订单消息队列、超时索引分片在同一个slot，秒杀脚本可以原子执行
+ * <p>
+ * 库存分桶：库存可以拆分为K个桶，第b个桶的库存、下单用户和时间窗口使用分片 (券id哈希 + b) % 分片数，
+ * 桶0就是不分桶时的key，其余桶的key加上 :b 后缀（如 seckill:stock:{3}:10:1）。
+ * 用户的下单资格只登记在按用户id选择的主桶中，一人一单和主桶库存的扣减在同一个slot原子完成
+ */
+@Component
+public class SeckillKeys {
+
+    @Value("${hmdp.seckill.stream-shards:4}")
+    private int streamShards;   // 分片数，修改后key会变化：需要先处理完已有分片中的订单，再重新预热秒杀券
+
+    /**
+     * 分片数
+     */
+    public int shards() {
+        return streamShards;
+    }
+
+    /**
+     * 优惠券库存桶所在的分片
+     */
+    public int shardOf(Long voucherId, int bucket) {
+        return Math.floorMod(voucherId.hashCode() + bucket, streamShards);
+    }
+
+    /**
+     * 优惠券的K个库存桶所在的所有分片
+     */
+    public Set<Integer> shardsOf(Long voucherId, int buckets) {
+        Set<Integer> shards = new TreeSet<>();
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            shards.add(shardOf(voucherId, bucket));
+        }
+        return shards;
+    }
+
+    /**
+     * 用户的主桶，用户的下单资格只登记在主桶中
+     */
+    public int homeBucket(Long userId, int buckets) {
+        return Math.floorMod(userId.hashCode(), buckets);
+    }
+
+    /**
+     * 订单消息队列分片 stream.orders:{n}
+     */
+    public String streamKey(int shard) {
+        return SECKILL_ORDER_STREAM + ":" + tag(shard);
+    }
+
+    /**
+     * 未支付订单的超时索引分片 seckill:timeout:{n}
+     */
+    public String timeoutKey(int shard) {
+        return SECKILL_TIMEOUT_KEY + ":" + tag(shard);
+    }
+
+    /**
+     * 秒杀库存 seckill:stock:{n}:voucherId，第b（b > 0）个桶为 seckill:stock:{n}:voucherId:b
+     */
+    public String stockKey(Long voucherId, int bucket) {
+        return SECKILL_STOCK_KEY + tag(shardOf(voucherId, bucket)) + ":" + voucherId + suffix(bucket);
+    }
+
+    /**
+     * 下单用户 seckill:order:{n}:voucherId，第b（b > 0）个桶为 seckill:order:{n}:voucherId:b
+     */
+    public String orderKey(Long voucherId, int bucket) {
+        return SECKILL_ORDER_KEY + tag(shardOf(voucherId, bucket)) + ":" + voucherId + suffix(bucket);
+    }
+
+    /**
+     * 秒杀时间窗口 seckill:time:{n}:voucherId，第b（b > 0）个桶为 seckill:time:{n}:voucherId:b
+     */
+    public String timeKey(Long voucherId, int bucket) {
+        return SECKILL_TIME_KEY + tag(shardOf(voucherId, bucket)) + ":" + voucherId + suffix(bucket);
+    }
+
+    private static String suffix(int bucket) {
+        return bucket == 0 ? "" : ":" + bucket;
+    }
+
+    private static String tag(int shard) {
+        return "{" + shard + "}";
+    }
+}
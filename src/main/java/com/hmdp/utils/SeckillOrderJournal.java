@@ -0,0 +1,173 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 数据库不可用时的本地订单日志（内存映射文件，只追加）
+ * <p>
+ * 文件格式：16字节头部（writeIndex + readIndex） + capacity条定长记录（orderId + userId + voucherId，24字节）。
+ * 消费者写入日志并force()落盘后才ACK消息，回放任务从readIndex开始批量写入数据库，全部回放完成后两个指针归零复用空间
+ */
+@Slf4j
+@Component
+public class SeckillOrderJournal {
+
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 24;
+
+    @Value("${hmdp.seckill.journal.enabled:false}")
+    private boolean enabled;
+
+    @Value("${hmdp.seckill.journal.path:data/seckill-order.journal}")
+    private String path;
+
+    @Value("${hmdp.seckill.journal.capacity:1000000}")
+    private int capacity;   // 最多保存的订单数
+
+    private MappedByteBuffer buffer;
+
+    private volatile long writeIndex;   // 下一条记录写入的位置
+    private volatile long readIndex;    // 下一条待回放记录的位置
+
+    public SeckillOrderJournal() {
+    }
+
+    /**
+     * 不经过Spring配置，直接开启日志，由调用方执行init和destroy
+     */
+    public SeckillOrderJournal(String path, int capacity) {
+        this.enabled = true;
+        this.path = path;
+        this.capacity = capacity;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (capacity <= 0 || capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE) {
+            throw new IllegalStateException("hmdp.seckill.journal.capacity 超出范围：" + capacity);
+        }
+        // 1.映射日志文件，文件不存在时创建
+        Path file = Paths.get(path);
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        }
+        // 2.恢复上次停止时的读写位置
+        writeIndex = buffer.getLong(0);
+        readIndex = buffer.getLong(8);
+        if (readIndex < 0 || readIndex > writeIndex || writeIndex > capacity) {
+            throw new IllegalStateException("订单日志头部损坏：writeIndex=" + writeIndex + ", readIndex=" + readIndex);
+        }
+        if (writeIndex > readIndex) {
+            log.warn("订单日志中有{}条订单等待回放，file={}", writeIndex - readIndex, file.toAbsolutePath());
+        }
+    }
+
+    @PreDestroy
+    public synchronized void destroy() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 日志中是否还有未回放的订单
+     */
+    public boolean isActive() {
+        return enabled && readIndex < writeIndex;
+    }
+
+    /**
+     * 未回放的订单数
+     */
+    public long size() {
+        return enabled ? writeIndex - readIndex : 0;
+    }
+
+    /**
+     * 追加一批订单并落盘
+     *
+     * @return false代表日志未开启或空间不足，调用方不能ACK这批消息
+     */
+    public synchronized boolean append(List<VoucherOrder> voucherOrders) {
+        if (!enabled || writeIndex + voucherOrders.size() > capacity) {
+            return false;
+        }
+        int position = HEADER_SIZE + (int) writeIndex * RECORD_SIZE;
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            buffer.putLong(position, voucherOrder.getId());
+            buffer.putLong(position + 8, voucherOrder.getUserId());
+            buffer.putLong(position + 16, voucherOrder.getVoucherId());
+            position += RECORD_SIZE;
+        }
+        // 先写记录再更新头部，force()之后这批订单才算持久化
+        writeIndex += voucherOrders.size();
+        buffer.putLong(0, writeIndex);
+        buffer.force();
+        return true;
+    }
+
+    /**
+     * 读取最多max条待回放的订单，不移动读指针
+     */
+    public synchronized List<VoucherOrder> peek(int max) {
+        if (!isActive()) {
+            return Collections.emptyList();
+        }
+        int n = (int) Math.min(max, writeIndex - readIndex);
+        List<VoucherOrder> voucherOrders = new ArrayList<>(n);
+        int position = HEADER_SIZE + (int) readIndex * RECORD_SIZE;
+        for (int i = 0; i < n; i++) {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(buffer.getLong(position));
+            voucherOrder.setUserId(buffer.getLong(position + 8));
+            voucherOrder.setVoucherId(buffer.getLong(position + 16));
+            voucherOrders.add(voucherOrder);
+            position += RECORD_SIZE;
+        }
+        return voucherOrders;
+    }
+
+    /**
+     * 确认前n条订单已经写入数据库，全部回放完成后读写指针归零
+     */
+    public synchronized void commit(int n) {
+        readIndex += n;
+        if (readIndex >= writeIndex) {
+            // 先把readIndex归零：即使只写入了一半，也只会重复回放（订单写入是幂等的），不会丢失
+            readIndex = 0;
+            buffer.putLong(8, readIndex);
+            writeIndex = 0;
+            buffer.putLong(0, writeIndex);
+        } else {
+            buffer.putLong(8, readIndex);
+        }
+        buffer.force();
+    }
+}
@@ -0,0 +1,77 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 本节点订单消费者的处理量统计，每5秒采样一次计算吞吐量
+ */
+@Component
+public class SeckillOrderMetrics {
+
+    private static final long SAMPLE_SECONDS = 5;
+
+    private final LongAdder succeeded = new LongAdder();    // 写入数据库的订单数
+    private final LongAdder failed = new LongAdder();   // 没有创建的订单数（库存不足等）
+    private final LongAdder errors = new LongAdder();   // 处理异常、留在pending-list中的订单数
+    private final LongAdder deadLettered = new LongAdder();     // 转入死信队列的订单数
+    private final LongAdder spilled = new LongAdder();  // 数据库不可用时写入本地订单日志的订单数
+
+    private volatile long lastHandled;
+    private volatile double handledPerSecond;
+
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        sampler.scheduleAtFixedRate(() -> {
+            long handled = succeeded.sum() + failed.sum();
+            handledPerSecond = (double) (handled - lastHandled) / SAMPLE_SECONDS;
+            lastHandled = handled;
+        }, SAMPLE_SECONDS, SAMPLE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        sampler.shutdownNow();
+    }
+
+    public void recordSucceeded(long n) {
+        succeeded.add(n);
+    }
+
+    public void recordFailed(long n) {
+        failed.add(n);
+    }
+
+    public void recordErrors(long n) {
+        errors.add(n);
+    }
+
+    public void recordDeadLettered(long n) {
+        deadLettered.add(n);
+    }
+
+    public void recordSpilled(long n) {
+        spilled.add(n);
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("succeeded", succeeded.sum());
+        map.put("failed", failed.sum());
+        map.put("errors", errors.sum());
+        map.put("deadLettered", deadLettered.sum());
+        map.put("spilled", spilled.sum());
+        map.put("handledPerSecond", handledPerSecond);
+        return map;
+    }
+}
@@ -0,0 +1,143 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_OWNER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_OWNER_TTL;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESULT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESULT_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESULT_TTL;
+
+/**
+ * 异步秒杀订单的处理结果
+ * 消费者处理完一批订单后写入短期有效的结果key seckill:result:{orderId}，并在频道中广播一次，
+ * 等待结果的请求挂起在DeferredResult上，不占用Tomcat线程，收到广播后唤醒
+ */
+@Slf4j
+@Component
+public class SeckillOrderResults implements MessageListener {
+
+    public static final String SUCCESS = "SUCCESS";
+    public static final String FAILED = "FAILED";
+    public static final String PENDING = "PENDING";
+
+    private final Map<Long, Queue<DeferredResult<Result>>> waiters = new ConcurrentHashMap<>();  // 订单id -> 等待结果的请求
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_RESULT_CHANNEL));
+    }
+
+    /**
+     * 保存一批订单的处理结果，一次管道写入，一条广播消息，格式为 orderId:status,orderId:status...
+     */
+    public void publish(Map<Long, String> results) {
+        if (results.isEmpty()) {
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            results.forEach((orderId, status) -> {
+                conn.setEx(SECKILL_RESULT_KEY + orderId, TimeUnit.MINUTES.toSeconds(SECKILL_RESULT_TTL), status);
+                message.append(orderId).append(':').append(status).append(',');
+            });
+            return null;
+        });
+        stringRedisTemplate.convertAndSend(SECKILL_RESULT_CHANNEL, message.substring(0, message.length() - 1));
+    }
+
+    /**
+     * 登记订单的下单用户 seckill:owner:{orderId}，订单还在队列中时只有下单用户可以查询处理结果
+     * 有效期覆盖结果key的有效期，过期后以数据库中的订单为准
+     */
+    public void own(Long orderId, Long userId) {
+        stringRedisTemplate.opsForValue().set(SECKILL_OWNER_KEY + orderId, userId.toString(),
+                SECKILL_OWNER_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 查询订单的下单用户，没有登记或已过期时返回null
+     */
+    public Long getOwner(Long orderId) {
+        String owner = stringRedisTemplate.opsForValue().get(SECKILL_OWNER_KEY + orderId);
+        return owner == null ? null : Long.valueOf(owner);
+    }
+
+    /**
+     * 查询订单的处理结果，没有结果时返回null
+     */
+    public String get(Long orderId) {
+        return stringRedisTemplate.opsForValue().get(SECKILL_RESULT_KEY + orderId);
+    }
+
+    /**
+     * 等待订单的处理结果，超时返回PENDING
+     */
+    public DeferredResult<Result> await(Long orderId, long timeoutMillis) {
+        DeferredResult<Result> deferred = new DeferredResult<>(timeoutMillis, Result.ok(PENDING));
+        waiters.compute(orderId, (id, queue) -> {
+            if (queue == null) {
+                queue = new ConcurrentLinkedQueue<>();
+            }
+            queue.add(deferred);
+            return queue;
+        });
+        // 完成或超时后移除，队列为空时连同key一起移除（compute保证与登记操作互斥）
+        deferred.onCompletion(() -> waiters.computeIfPresent(orderId, (id, queue) -> {
+            queue.remove(deferred);
+            return queue.isEmpty() ? null : queue;
+        }));
+        // 先登记再查询，避免在登记之前结果已经写入而错过广播
+        String status = get(orderId);
+        if (status != null) {
+            deferred.setResult(Result.ok(status));
+        }
+        return deferred;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (String item : StrUtil.split(body, ',')) {
+            int i = item.indexOf(':');
+            if (i < 0) {
+                continue;
+            }
+            Queue<DeferredResult<Result>> queue = waiters.remove(Long.valueOf(item.substring(0, i)));
+            if (queue == null) {
+                continue;
+            }
+            Result result = Result.ok(item.substring(i + 1));
+            for (DeferredResult<Result> deferred : queue) {
+                deferred.setResult(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 未支付订单超时取消
+ * <p>
+ * 秒杀脚本下单时把订单登记到Redis的zset（seckill:timeout:{n}，与订单消息队列相同的分片，score为到期时间），这是所有订单的超时索引；
+ * 每个节点只把即将到期（load-window内）的订单加载到本地时间轮中，到期后批量认领、取消订单并归还库存，不需要轮询数据库
+ */
+@Slf4j
+@Component
+public class SeckillOrderTimeouts {
+
+    private static final int LOAD_PAGE_SIZE = 1000;
+    private static final int MAX_SCHEDULED = 1_000_000;     // 时间轮中最多的定时任务数
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> RETURN_SCRIPT;
+
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("timeoutclaim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+        RETURN_SCRIPT = new DefaultRedisScript<>();
+        RETURN_SCRIPT.setLocation(new ClassPathResource("timeoutreturn.lua"));
+        RETURN_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Lazy
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Resource
+    private SeckillOrderResults seckillOrderResults;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Value("${hmdp.seckill.pay-timeout:900}")
+    private long payTimeoutSeconds;     // 0表示不自动取消
+
+    @Value("${hmdp.seckill.timeout.load-window:60}")
+    private long loadWindowSeconds;     // 每次加载未来多少秒内到期的订单
+
+    @Value("${hmdp.seckill.timeout.load-interval:10}")
+    private long loadIntervalSeconds;   // 加载间隔（秒），需要小于load-window
+
+    @Value("${hmdp.seckill.timeout.claim-lease:60}")
+    private long claimLeaseSeconds;     // 认领后的租期（秒），节点处理中断时租期过后由任意节点重新处理
+
+    @Value("${hmdp.seckill.timeout.batch-size:500}")
+    private int batchSize;  // 每批取消的订单数
+
+    @Value("${hmdp.seckill.shutdown-timeout:30}")
+    private long shutdownTimeoutSeconds;    // 停机时等待当前批次处理完的最长时间（秒）
+
+    private final Set<String> scheduled = ConcurrentHashMap.newKeySet();    // 已经放入时间轮、还没有处理完的订单
+
+    private final BlockingQueue<String> expired = new LinkedBlockingQueue<>();  // 时间轮中已经到期、等待取消的订单
+
+    private HashedWheelTimer timer;
+
+    private ScheduledExecutorService executor;  // 加载任务和取消任务
+
+    private volatile boolean running = true;
+
+    @PostConstruct
+    private void init() {
+        if (payTimeoutSeconds <= 0) {
+            return;
+        }
+        // 100ms一格、512格的时间轮，只负责到期通知，任务本身只是把订单放入到期队列
+        timer = new HashedWheelTimer(new DefaultThreadFactory("seckill-timeout-wheel", true),
+                100, TimeUnit.MILLISECONDS, 512);
+        executor = Executors.newScheduledThreadPool(2);
+        executor.scheduleWithFixedDelay(this::load, 0, loadIntervalSeconds, TimeUnit.SECONDS);
+        executor.submit(this::cancelExpired);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (timer == null) {
+            return;
+        }
+        // 1.不再加载和取出新的订单，时间轮中未到期的订单由其他节点或重启后重新加载
+        running = false;
+        timer.stop();
+        executor.shutdown();
+        // 2.等待正在取消的批次完成（数据库已取消的订单需要归还Redis库存），超时后中断，已认领的订单租期过后重新到期
+        try {
+            if (!executor.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+                log.warn("超时订单取消任务未能在{}秒内停止，已认领的订单将在租期过后重新处理", shutdownTimeoutSeconds);
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 把即将到期（包括已经过期、还没有处理）的订单加载到时间轮
+     */
+    private void load() {
+        for (int shard = 0; running && shard < seckillKeys.shards(); shard++) {
+            try {
+                load(seckillKeys.timeoutKey(shard));
+            } catch (Exception e) {
+                log.error("加载未支付订单超时索引异常，shard={}", shard, e);
+            }
+        }
+    }
+
+    private void load(String timeoutKey) {
+        long now = System.currentTimeMillis();
+        long max = now + TimeUnit.SECONDS.toMillis(loadWindowSeconds);
+        for (long offset = 0; running && scheduled.size() < MAX_SCHEDULED; offset += LOAD_PAGE_SIZE) {
+            // ZRANGEBYSCORE seckill:timeout:{n} -inf max WITHSCORES LIMIT offset 1000
+            Set<ZSetOperations.TypedTuple<String>> page = stringRedisTemplate.opsForZSet()
+                    .rangeByScoreWithScores(timeoutKey, Double.NEGATIVE_INFINITY, max, offset, LOAD_PAGE_SIZE);
+            if (page == null || page.isEmpty()) {
+                return;
+            }
+            for (ZSetOperations.TypedTuple<String> tuple : page) {
+                String member = tuple.getValue();
+                if (member == null || tuple.getScore() == null || !scheduled.add(member)) {
+                    continue;
+                }
+                long delay = Math.max(tuple.getScore().longValue() - now, 0);
+                timer.newTimeout(timeout -> expired.offer(member), delay, TimeUnit.MILLISECONDS);
+            }
+            if (page.size() < LOAD_PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 批量取消到期的订单
+     */
+    private void cancelExpired() {
+        while (running) {
+            List<String> batch = new ArrayList<>(batchSize);
+            try {
+                // 1.等待到期的订单，一次最多取出batchSize个
+                String first = expired.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                expired.drainTo(batch, batchSize - 1);
+                // 2.按分片取消订单，订单在扣减库存的桶所在的分片
+                Map<Integer, List<String>> membersByShard = new HashMap<>();
+                for (String member : batch) {
+                    membersByShard.computeIfAbsent(seckillKeys.shardOf(parse(member).getVoucherId(), bucketOf(member)),
+                            shard -> new ArrayList<>()).add(member);
+                }
+                for (Map.Entry<Integer, List<String>> entry : membersByShard.entrySet()) {
+                    cancel(seckillKeys.timeoutKey(entry.getKey()), entry.getValue());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                // 已认领的订单租期过后重新到期
+                log.error("取消超时订单异常", e);
+            } finally {
+                batch.forEach(scheduled::remove);
+            }
+        }
+    }
+
+    private void cancel(String timeoutKey, List<String> members) {
+        // 1.认领到期的订单，其他节点已经认领或者订单已经处理完的会被跳过
+        List<Object> args = new ArrayList<>(members.size() + 1);
+        args.add(String.valueOf(TimeUnit.SECONDS.toMillis(claimLeaseSeconds)));
+        args.addAll(members);
+        @SuppressWarnings("unchecked")
+        List<String> claimed = stringRedisTemplate.execute(CLAIM_SCRIPT,
+                Collections.singletonList(timeoutKey), args.toArray());
+        if (claimed == null || claimed.isEmpty()) {
+            return;
+        }
+        Map<Long, String> membersById = new HashMap<>(claimed.size());
+        Map<Long, VoucherOrder> claimedById = new HashMap<>(claimed.size());
+        for (String member : claimed) {
+            VoucherOrder voucherOrder = parse(member);
+            membersById.put(voucherOrder.getId(), member);
+            claimedById.put(voucherOrder.getId(), voucherOrder);
+        }
+
+        // 2.取消仍未支付的订单，并归还数据库中的库存
+        List<VoucherOrder> existing = voucherOrderService.listByIds(membersById.keySet());
+        List<Long> ids = new ArrayList<>(existing.size());
+        existing.forEach(voucherOrder -> ids.add(voucherOrder.getId()));
+        List<VoucherOrder> cancelled = ids.isEmpty()
+                ? Collections.emptyList() : voucherOrderService.cancelUnpaidOrders(ids);
+
+        // 3.需要归还Redis库存的订单：本次取消的，和之前已经取消（status = 4）但还没有归还的
+        Set<Long> returnIds = new HashSet<>();
+        cancelled.forEach(voucherOrder -> returnIds.add(voucherOrder.getId()));
+        existing.stream().filter(voucherOrder -> Integer.valueOf(4).equals(voucherOrder.getStatus()))
+                .forEach(voucherOrder -> returnIds.add(voucherOrder.getId()));
+
+        // 4.数据库中没有的订单：还在处理中的等租期过后再处理，已经失败或丢失的归还库存
+        Set<Long> missing = new HashSet<>(membersById.keySet());
+        missing.removeAll(ids);
+        Set<Long> lost = lostOrders(missing, claimedById);
+
+        // 5.归还Redis中的库存（回到扣减库存的桶）并删除超时索引，已支付的订单只删除超时索引
+        List<String> returnKeys = new ArrayList<>(returnIds.size() + lost.size() + 1);
+        returnKeys.add(timeoutKey);
+        List<Object> returnArgs = new ArrayList<>(claimed.size() + 2);
+        returnArgs.add(String.valueOf(returnIds.size()));
+        returnArgs.add(String.valueOf(lost.size()));
+        List<Long> returnOrder = new ArrayList<>(returnIds);
+        returnOrder.addAll(lost);
+        for (Long id : returnOrder) {
+            String member = membersById.get(id);
+            returnKeys.add(seckillKeys.stockKey(claimedById.get(id).getVoucherId(), bucketOf(member)));
+            returnArgs.add(member);
+        }
+        ids.stream().filter(id -> !returnIds.contains(id)).forEach(id -> returnArgs.add(membersById.get(id)));
+        @SuppressWarnings("unchecked")
+        List<Object> result = stringRedisTemplate.execute(RETURN_SCRIPT, returnKeys, returnArgs.toArray());
+        Long returned = result == null || result.isEmpty() ? null : (Long) result.get(0);
+
+        // 5.1 本次归还了库存的丢失订单，释放用户主桶中的下单资格（主桶可能不在这个slot，不能在脚本中执行）
+        if (result != null) {
+            for (int i = 1; i < result.size(); i++) {
+                VoucherOrder voucherOrder = parse(result.get(i).toString());
+                int buckets = Math.max(seckillVoucherService.queryStockBuckets(voucherOrder.getVoucherId()), 1);
+                stringRedisTemplate.opsForSet().remove(seckillKeys.orderKey(voucherOrder.getVoucherId(),
+                        seckillKeys.homeBucket(voucherOrder.getUserId(), buckets)), voucherOrder.getUserId().toString());
+            }
+        }
+
+        // 6.有库存归还的券清除售罄标记
+        Stream.concat(returnIds.stream(), lost.stream())
+                .map(id -> claimedById.get(id).getVoucherId()).distinct().forEach(seckillSoldOutCache::clear);
+        if (returned != null && returned > 0) {
+            log.info("取消超时未支付订单{}条，归还Redis库存{}个", cancelled.size(), returned);
+        }
+    }
+
+    /**
+     * 找出数据库中没有、也不会再写入数据库的订单：处理结果为FAILED，或者已经不在订单消息队列和本地订单日志中
+     * 【先查队列再查一次数据库，查询期间刚写入数据库的订单不会被当成丢失】
+     */
+    private Set<Long> lostOrders(Set<Long> missing, Map<Long, VoucherOrder> claimedById) {
+        Set<Long> lost = new HashSet<>();
+        List<VoucherOrder> unknown = new ArrayList<>();
+        for (Long id : missing) {
+            if (SeckillOrderResults.FAILED.equals(seckillOrderResults.get(id))) {
+                lost.add(id);
+            } else {
+                unknown.add(claimedById.get(id));
+            }
+        }
+        if (unknown.isEmpty()) {
+            return lost;
+        }
+        Set<Long> queued = voucherOrderService.queryQueuedOrders(unknown);
+        List<Long> candidates = new ArrayList<>();
+        unknown.stream().map(VoucherOrder::getId).filter(id -> !queued.contains(id)).forEach(candidates::add);
+        if (candidates.isEmpty()) {
+            return lost;
+        }
+        Set<Long> saved = new HashSet<>();
+        voucherOrderService.listByIds(candidates).forEach(voucherOrder -> saved.add(voucherOrder.getId()));
+        candidates.stream().filter(id -> !saved.contains(id)).forEach(lost::add);
+        if (!lost.isEmpty()) {
+            log.warn("超时订单未写入数据库，归还Redis库存：{}", lost);
+        }
+        return lost;
+    }
+
+    /**
+     * 解析超时索引的member orderId:voucherId:userId[:bucket]
+     */
+    private static VoucherOrder parse(String member) {
+        String[] parts = member.split(":");
+        return new VoucherOrder().setId(Long.valueOf(parts[0]))
+                .setVoucherId(Long.valueOf(parts[1])).setUserId(Long.valueOf(parts[2]));
+    }
+
+    /**
+     * 超时索引的member中扣减库存的桶，不分桶或桶0时没有这一段
+     */
+    private static int bucketOf(String member) {
+        String[] parts = member.split(":");
+        return parts.length > 3 ? Integer.parseInt(parts[3]) : 0;
+    }
+}
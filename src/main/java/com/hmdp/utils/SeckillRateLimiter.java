@@ -0,0 +1,75 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_KEY;
+
+/**
+ * 秒杀接口的两级限流
+ * 第一级：每个节点、每张券一个本地令牌桶，无锁，不访问Redis
+ * 第二级：每张券一个Redis全局令牌桶，限制整个集群进入秒杀脚本的请求量
+ * 每秒令牌数配置为0表示关闭对应的一级
+ */
+@Component
+public class SeckillRateLimiter {
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("ratelimit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final Map<Long, LocalTokenBucket> localBuckets = new ConcurrentHashMap<>();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.rate-limit.local-qps:0}")
+    private long localQps;
+
+    @Value("${hmdp.seckill.rate-limit.local-burst:0}")
+    private long localBurst;
+
+    @Value("${hmdp.seckill.rate-limit.global-qps:0}")
+    private long globalQps;
+
+    @Value("${hmdp.seckill.rate-limit.global-burst:0}")
+    private long globalBurst;
+
+    /**
+     * 尝试通过限流
+     *
+     * @return true代表放行，false代表应当直接返回"系统繁忙"
+     */
+    public boolean tryAcquire(Long voucherId) {
+        // 1.本地令牌桶
+        if (localQps > 0) {
+            LocalTokenBucket bucket = localBuckets.computeIfAbsent(voucherId,
+                    id -> new LocalTokenBucket(localQps, localBurst > 0 ? localBurst : localQps));
+            if (!bucket.tryAcquire()) {
+                return false;
+            }
+        }
+        // 2.Redis全局令牌桶
+        if (globalQps > 0) {
+            Long allowed = stringRedisTemplate.execute(
+                    RATE_LIMIT_SCRIPT,
+                    Collections.singletonList(SECKILL_LIMIT_KEY + voucherId),
+                    String.valueOf(globalQps), String.valueOf(globalBurst > 0 ? globalBurst : globalQps)
+            );
+            return allowed != null && allowed == 1L;
+        }
+        return true;
+    }
+}
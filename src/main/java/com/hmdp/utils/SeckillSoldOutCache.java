@@ -0,0 +1,88 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 秒杀券售罄标记（JVM本地），售罄后的请求直接在内存中拒绝，不再执行秒杀脚本
+ * 标记的设置与清除通过Redis发布订阅广播到所有节点，消息格式为 voucherId:1（售罄）或 voucherId:0（补货）
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutCache implements MessageListener {
+
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();  // 优惠券id -> 标记时间
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.seckill.sold-out-ttl:60}")
+    private long soldOutTtlSeconds;     // 标记的有效期，防止补货消息丢失后节点一直拒绝请求
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 是否已售罄
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long markTime = soldOut.get(voucherId);
+        return markTime != null && System.currentTimeMillis() - markTime < TimeUnit.SECONDS.toMillis(soldOutTtlSeconds);
+    }
+
+    /**
+     * 标记售罄，只有本节点第一次标记时才广播
+     */
+    public void markSoldOut(Long voucherId) {
+        boolean first = !isSoldOut(voucherId);
+        soldOut.put(voucherId, System.currentTimeMillis());
+        if (first) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId + ":1");
+        }
+    }
+
+    /**
+     * 补货后清除售罄标记
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId + ":0");
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 自己发出的消息也会收到，各节点按频道中的消息顺序处理，最终状态一致
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int i = body.indexOf(':');
+        if (i < 0) {
+            log.warn("无法解析的售罄消息：{}", body);
+            return;
+        }
+        Long voucherId = Long.valueOf(body.substring(0, i));
+        if ("1".equals(body.substring(i + 1))) {
+            soldOut.put(voucherId, System.currentTimeMillis());
+        } else {
+            soldOut.remove(voucherId);
+        }
+    }
+}
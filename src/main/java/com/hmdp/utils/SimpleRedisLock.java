@@ -5,8 +5,10 @@ import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class SimpleRedisLock implements ILock {
@@ -14,6 +16,8 @@ public class SimpleRedisLock implements ILock {
     private static final String KEY_PREFIX = "lock:";
     private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";    // 线程标识前缀
     private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    private static final long DEFAULT_LEASE_SECONDS = 30;
+    private static final long NO_OWNER = -1;
 
     static {
         UNLOCK_SCRIPT = new DefaultRedisScript<>();
@@ -23,15 +27,90 @@ public class SimpleRedisLock implements ILock {
 
     private String name;    // 锁的名字
     private StringRedisTemplate stringRedisTemplate;
+    private RedisLockClient redisLockClient;    // 订阅释放锁的通知
+    private LocalKeyedLock localLocks;  // 节点共用的本地锁，同一个锁在本节点只有一个线程去竞争Redis
+    private final AtomicLong owner = new AtomicLong(NO_OWNER);  // 持有本地锁的线程id
 
-    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, RedisLockClient redisLockClient) {
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisLockClient = redisLockClient;
+        this.localLocks = redisLockClient.getLocalLocks();
     }
 
     @Override
     public boolean tryLock(long timeoutSec) {
         String key = KEY_PREFIX + name;
+        // 先获取本地锁，本节点已经有线程持有或正在竞争该锁时直接返回，不访问Redis 【不可重入，已持有时也返回false】
+        long threadId = Thread.currentThread().getId();
+        if (owner.get() == threadId || !localLocks.tryLock(key)) {
+            return false;
+        }
+        owner.set(threadId);
+        if (tryLockRedis(key, timeoutSec)) {
+            return true;
+        }
+        releaseLocal(key);
+        return false;
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        // 不支持看门狗，leaseTime为-1时使用默认的30秒
+        String key = KEY_PREFIX + name;
+        long timeoutSec = leaseTime > 0 ? Math.max(unit.toSeconds(leaseTime), 1) : DEFAULT_LEASE_SECONDS;
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        // 1.本节点的其他线程在本地等待，只有拿到本地锁的线程去Redis中竞争
+        long threadId = Thread.currentThread().getId();
+        if (owner.get() == threadId || !localLocks.tryLock(key, waitTime, unit)) {
+            return false;
+        }
+        owner.set(threadId);
+        boolean success = false;
+        try {
+            success = tryLockRedis(key, timeoutSec, deadline);
+            return success;
+        } finally {
+            if (!success) {
+                releaseLocal(key);
+            }
+        }
+    }
+
+    /**
+     * 与其他节点竞争Redis中的锁：获取失败时等待释放锁的通知，不循环休眠重试
+     */
+    private boolean tryLockRedis(String key, long timeoutSec, long deadline) throws InterruptedException {
+        // 1.尝试获取锁
+        if (tryLockRedis(key, timeoutSec)) {
+            return true;
+        }
+        if (deadline <= System.currentTimeMillis()) {
+            return false;
+        }
+        // 2.登记等待，释放锁的通知到达时被唤醒
+        Semaphore semaphore = redisLockClient.subscribe(key);
+        try {
+            while (true) {
+                // 2.1 登记之后再试一次，避免在登记之前锁刚好被释放
+                if (tryLockRedis(key, timeoutSec)) {
+                    return true;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                // 2.2 等待释放锁的通知，最多等到锁过期（持有者宕机时没有通知）或者等待超时
+                Long ttl = stringRedisTemplate.getExpire(key, TimeUnit.MILLISECONDS);
+                long wait = ttl != null && ttl > 0 ? Math.min(ttl, remaining) : Math.min(1, remaining);
+                semaphore.tryAcquire(wait, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            redisLockClient.unsubscribe(key);
+        }
+    }
+
+    private boolean tryLockRedis(String key, long timeoutSec) {
         // 获取线程标识
         String threadId = ID_PREFIX + Thread.currentThread().getId();
         // 获取锁
@@ -40,17 +119,30 @@ public class SimpleRedisLock implements ILock {
         return Boolean.TRUE.equals(success);    // success的值可能是null，这种写法更安全
     }
 
+    private void releaseLocal(String key) {
+        // 只有持有本地锁的线程才能释放，其他线程误调用unlock时不会释放别人的本地锁
+        if (owner.compareAndSet(Thread.currentThread().getId(), NO_OWNER)) {
+            localLocks.unlock(key);
+        }
+    }
+
+    @Override
     public void unlock() {
         String key = KEY_PREFIX + name;
         // 获取线程标识
         String threadId = ID_PREFIX + Thread.currentThread().getId();
 
-        // 调用lua脚本
-        stringRedisTemplate.execute(
-                UNLOCK_SCRIPT,
-                Collections.singletonList(key),
-                threadId
-        );
+        // 调用lua脚本，释放后通知其他节点等待的线程
+        try {
+            stringRedisTemplate.execute(
+                    UNLOCK_SCRIPT,
+                    Arrays.asList(key, RedisLockClient.releasedChannel(key)),
+                    threadId
+            );
+        } finally {
+            // 释放本地锁，唤醒本节点等待的线程
+            releaseLocal(key);
+        }
     }
 
     /*@Override
@@ -0,0 +1,17 @@
+-- 确认并删除已处理的消息，保证stream中只剩下未投递和未确认的消息
+-- 【注意】stream上只能有一个消费者组，否则会删除其他消费者组还没有消费的消息
+-- 1.参数列表
+-- 1.1 stream的key
+local key = KEYS[1]
+-- 1.2 消费者组
+local group = ARGV[1]
+-- 1.3 消息id列表 ARGV[2..n]
+local ids = {}
+for i = 2, #ARGV do
+    ids[#ids + 1] = ARGV[i]
+end
+
+-- 2.XACK key group id1 id2 ...
+redis.call('xack', key, group, unpack(ids))
+-- 3.XDEL key id1 id2 ...
+return redis.call('xdel', key, unpack(ids))
@@ -0,0 +1,16 @@
+-- 把id加入布隆过滤器，并通知所有节点更新本地副本
+-- 1.参数列表
+-- 1.1 位图的key
+local key = KEYS[1]
+-- 1.2 通知频道
+local channel = KEYS[2]
+-- 1.3 通知消息 name:id，ARGV[2..]为id对应的k个位偏移量
+local message = ARGV[1]
+
+-- 2.设置k个位 setbit key offset 1
+for i = 2, #ARGV do
+    redis.call('setbit', key, ARGV[i], 1)
+end
+
+-- 3.发布通知 publish channel name:id
+return redis.call('publish', channel, message)
@@ -0,0 +1,29 @@
+-- 令牌桶限流
+-- 1.参数列表
+-- 1.1 桶的key
+local key = KEYS[1]
+-- 1.2 每秒生成的令牌数
+local rate = tonumber(ARGV[1])
+-- 1.3 桶容量
+local capacity = tonumber(ARGV[2])
+
+-- 2.当前时间（毫秒），以Redis服务器时间为准
+local t = redis.call('time')
+local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+
+-- 3.按流逝的时间补充令牌，桶不存在时视为满桶
+local bucket = redis.call('hmget', key, 'tokens', 'ts')
+local tokens = tonumber(bucket[1]) or capacity
+local ts = tonumber(bucket[2]) or now
+tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+
+-- 4.取一个令牌
+local allowed = 0
+if (tokens >= 1) then
+    tokens = tokens - 1
+    allowed = 1
+end
+redis.call('hmset', key, 'tokens', tokens, 'ts', now)
+-- 桶补满所需的时间后自动过期
+redis.call('pexpire', key, math.ceil(capacity * 1000 / rate) + 1000)
+return allowed
@@ -0,0 +1,18 @@
+-- 可重入锁加锁，hash结构：field为线程标识，value为重入次数
+-- 1.参数列表
+-- 1.1 锁的key
+local key = KEYS[1]
+-- 1.2 锁的有效期（毫秒）
+local leaseTime = ARGV[1]
+-- 1.3 线程标识
+local threadId = ARGV[2]
+
+-- 2.锁不存在，或者是当前线程持有的锁，重入次数+1并重置有效期
+if (redis.call('exists', key) == 0 or redis.call('hexists', key, threadId) == 1) then
+    redis.call('hincrby', key, threadId, 1)
+    redis.call('pexpire', key, leaseTime)
+    -- 获取锁成功返回nil
+    return nil
+end
+-- 3.锁被其他线程持有，返回锁的剩余有效期（毫秒），等待方最多等待这么久就会重试
+return redis.call('pttl', key)
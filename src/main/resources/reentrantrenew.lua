@@ -0,0 +1,7 @@
+-- 看门狗续期：锁仍由当前线程持有时重置有效期
+-- KEYS[1] 锁的key，ARGV[1] 锁的有效期（毫秒），ARGV[2] 线程标识
+if (redis.call('hexists', KEYS[1], ARGV[2]) == 1) then
+    redis.call('pexpire', KEYS[1], ARGV[1])
+    return 1
+end
+return 0
@@ -0,0 +1,25 @@
+-- 可重入锁释放锁
+-- 1.参数列表
+-- 1.1 锁的key
+local key = KEYS[1]
+-- 1.2 该锁的释放频道 lock:released:{key}，只有等待该锁的节点订阅
+local channel = KEYS[2]
+-- 1.3 锁的有效期（毫秒）：获取锁时指定的有效期，看门狗模式下为看门狗的有效期
+local leaseTime = ARGV[1]
+-- 1.4 线程标识
+local threadId = ARGV[2]
+
+-- 2.不是当前线程持有的锁，返回nil
+if (redis.call('hexists', key, threadId) == 0) then
+    return nil
+end
+-- 3.重入次数-1，仍大于0说明还有外层没有释放，重置有效期，返回0
+local count = redis.call('hincrby', key, threadId, -1)
+if (count > 0) then
+    redis.call('pexpire', key, leaseTime)
+    return 0
+end
+-- 4.全部释放，删除锁并通知等待方 publish channel key，返回1
+redis.call('del', key)
+redis.call('publish', channel, key)
+return 1
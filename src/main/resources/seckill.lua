@@ -1,20 +1,52 @@
--- 1.参数列表
--- 1.1 优惠券id
+-- 1.key列表，都是用户主桶的key，带有主桶所在分片的hash tag，Redis Cluster中位于同一个slot
+-- 1.1 库存key seckill:stock:{n}:voucherId[:bucket]
+local stockKey = KEYS[1]
+-- 1.2 下单用户key seckill:order:{n}:voucherId[:bucket]
+local orderKey = KEYS[2]
+-- 1.3 秒杀时间窗口key seckill:time:{n}:voucherId[:bucket]，hash中的begin、end为epoch秒
+local timeKey = KEYS[3]
+-- 1.4 订单消息队列分片 stream.orders:{n}
+local streamKey = KEYS[4]
+-- 1.5 未支付订单的超时索引分片 seckill:timeout:{n}，member为 orderId:voucherId:userId[:bucket]，score为到期时间（毫秒）
+local timeoutKey = KEYS[5]
+
+-- 2.参数列表
+-- 2.1 优惠券id
 local voucherId = ARGV[1]
--- 1.2 用户id
+-- 2.2 用户id
 local userId = ARGV[2]
--- 1.3 订单id
+-- 2.3 订单id
 local orderId = ARGV[3]
-
--- 2.数据key
--- 2.1 库存key
-local stockKey = "seckill:stock:" .. voucherId
--- 2.2 订单key
-local orderKey = "seckill:order:" .. voucherId
+-- 2.4 分片中未处理完的消息数上限，0表示不限制
+local maxBacklog = tonumber(ARGV[4])
+-- 2.5 未支付订单的超时时间（毫秒），0表示不自动取消
+local payTimeout = tonumber(ARGV[5])
+-- 2.6 主桶编号，不为0时追加到超时索引的member中，归还库存时回到这个桶
+local bucket = tonumber(ARGV[6])
+-- 2.7 库存桶数
+local buckets = tonumber(ARGV[7])
 
 -- 3.脚本业务
+-- 3.0 判断秒杀是否在时间窗口内，以Redis服务器时间为准
+local window = redis.call('hmget', timeKey, 'begin', 'end')
+if (window[1]) then
+    local now = tonumber(redis.call('time')[1])
+    if (now < tonumber(window[1])) then
+        -- 尚未开始，返回3
+        return 3
+    end
+    if (now > tonumber(window[2])) then
+        -- 已经结束，返回4
+        return 4
+    end
+end
 -- 3.1 判断库存是否充足 get stockKey
-if (tonumber(redis.call('get', stockKey)) <= 0) then
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil) then
+    -- 库存没有加载到Redis（如Redis数据被清空），返回5
+    return 5
+end
+if (stock <= 0 and buckets <= 1) then
     -- 库存不足，返回1
     return 1
 end
@@ -23,10 +55,30 @@ if (redis.call('sismember', orderKey, userId) == 1) then
     -- 存在，说明是重复下单，返回2
     return 2
 end
--- 3.3 扣减库存 incrby stockKey -1
+if (stock <= 0) then
+    -- 主桶库存不足：先占用下单资格，由调用方到其他桶扣减库存，全部不足时再释放资格，返回7
+    redis.call('sadd', orderKey, userId)
+    return 7
+end
+-- 3.3 消息积压超过上限时拒绝，已确认的消息会被删除，XLEN即为积压量，不会裁剪未确认的消息
+if (maxBacklog > 0 and redis.call('xlen', streamKey) >= maxBacklog) then
+    -- 系统繁忙，返回6
+    return 6
+end
+-- 3.4 扣减库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
--- 3.4 下单（保存用户） sadd orderKey userId
+-- 3.5 下单（保存用户） sadd orderKey userId
 redis.call('sadd', orderKey, userId)
--- 3.5 发送消息到队列中，XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.6 发送消息到队列分片中，XADD stream.orders:{n} * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.7 登记未支付超时 zadd seckill:timeout:{n} expireAt orderId:voucherId:userId[:bucket]
+if (payTimeout > 0) then
+    local t = redis.call('time')
+    local expireAt = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000) + payTimeout
+    local member = orderId .. ":" .. voucherId .. ":" .. userId
+    if (bucket > 0) then
+        member = member .. ":" .. bucket
+    end
+    redis.call('zadd', timeoutKey, expireAt, member)
+end
 return 0
\ No newline at end of file
@@ -0,0 +1,54 @@
+-- 主桶库存不足时，从其他库存桶扣减一个库存，下单资格已经由秒杀脚本在主桶中占用
+-- 1.key列表，都是这个桶的key，带有桶所在分片的hash tag，Redis Cluster中位于同一个slot
+-- 1.1 库存key seckill:stock:{n}:voucherId[:bucket]
+local stockKey = KEYS[1]
+-- 1.2 订单消息队列分片 stream.orders:{n}
+local streamKey = KEYS[2]
+-- 1.3 未支付订单的超时索引分片 seckill:timeout:{n}
+local timeoutKey = KEYS[3]
+
+-- 2.参数列表
+-- 2.1 优惠券id
+local voucherId = ARGV[1]
+-- 2.2 用户id
+local userId = ARGV[2]
+-- 2.3 订单id
+local orderId = ARGV[3]
+-- 2.4 分片中未处理完的消息数上限，0表示不限制
+local maxBacklog = tonumber(ARGV[4])
+-- 2.5 未支付订单的超时时间（毫秒），0表示不自动取消
+local payTimeout = tonumber(ARGV[5])
+-- 2.6 桶编号，不为0时追加到超时索引的member中，归还库存时回到这个桶
+local bucket = tonumber(ARGV[6])
+
+-- 3.脚本业务
+-- 3.1 判断库存是否充足 get stockKey
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil) then
+    -- 库存没有加载到Redis，返回5
+    return 5
+end
+if (stock <= 0) then
+    -- 库存不足，返回1
+    return 1
+end
+-- 3.2 消息积压超过上限时拒绝
+if (maxBacklog > 0 and redis.call('xlen', streamKey) >= maxBacklog) then
+    -- 系统繁忙，返回6
+    return 6
+end
+-- 3.3 扣减库存 incrby stockKey -1
+redis.call('incrby', stockKey, -1)
+-- 3.4 发送消息到这个桶所在的队列分片中
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.5 登记未支付超时 zadd seckill:timeout:{n} expireAt orderId:voucherId:userId[:bucket]
+if (payTimeout > 0) then
+    local t = redis.call('time')
+    local expireAt = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000) + payTimeout
+    local member = orderId .. ":" .. voucherId .. ":" .. userId
+    if (bucket > 0) then
+        member = member .. ":" .. bucket
+    end
+    redis.call('zadd', timeoutKey, expireAt, member)
+end
+return 0
@@ -0,0 +1,21 @@
+-- 认领到期的未支付订单
+-- 1.参数列表
+-- 1.1 超时索引zset的key，member为 orderId:voucherId:userId[:bucket]，score为到期时间（毫秒）
+local key = KEYS[1]
+-- 1.2 认领租期（毫秒），租期内其他节点不会再处理，处理中断时租期过后重新到期
+local lease = tonumber(ARGV[1])
+
+-- 2.当前时间（毫秒），以Redis服务器时间为准
+local t = redis.call('time')
+local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+
+-- 3.到期的订单延后一个租期，返回认领成功的订单
+local claimed = {}
+for i = 2, #ARGV do
+    local score = tonumber(redis.call('zscore', key, ARGV[i]))
+    if (score ~= nil and score <= now) then
+        redis.call('zadd', key, now + lease, ARGV[i])
+        claimed[#claimed + 1] = ARGV[i]
+    end
+end
+return claimed
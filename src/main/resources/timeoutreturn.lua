@@ -0,0 +1,38 @@
+-- 归还已取消订单的库存，并删除订单的超时索引
+-- 1.参数列表
+-- 1.1 超时索引zset的分片key，都带有同一个分片的hash tag：
+-- KEYS[2..n+m+1]依次为需要归还的订单扣减库存的桶的库存key
+local key = KEYS[1]
+-- 1.2 已取消的订单数n，ARGV[3..n+2]为已取消的订单
+local n = tonumber(ARGV[1])
+-- 1.3 丢失（没有写入数据库）的订单数m，ARGV[n+3..n+m+2]为丢失的订单，其余为已支付等只需删除索引的订单
+local m = tonumber(ARGV[2])
+
+-- 2.需要归还的订单：只有成功删除超时索引时才归还一个库存
+-- 【超时索引就是"库存还没有归还"的标记，同一个订单被多次处理（如数据库已取消、归还前进程退出）时只会归还一次】
+local returned = 0
+local lost = {}
+for i = 1, n + m do
+    local member = ARGV[i + 2]
+    if (redis.call('zrem', key, member) == 1) then
+        redis.call('incrby', KEYS[i + 1], 1)
+        returned = returned + 1
+        -- 2.1 丢失的订单在数据库中没有记录，需要释放用户的下单资格（已取消的订单仍然占用下单资格），
+        -- 下单资格登记在用户的主桶中，可能不在这个slot，返回给调用方释放
+        if (i > n) then
+            lost[#lost + 1] = member
+        end
+    end
+end
+
+-- 3.其余订单只删除超时索引 zrem key member1 member2 ...
+local members = {}
+for i = n + m + 3, #ARGV do
+    members[#members + 1] = ARGV[i]
+end
+if (#members > 0) then
+    redis.call('zrem', key, unpack(members))
+end
+-- 4.返回归还的库存数和本次归还了库存的丢失订单
+table.insert(lost, 1, returned)
+return lost
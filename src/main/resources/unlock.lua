@@ -1,5 +1,7 @@
 -- 锁的key
 -- local key = KEYS[1]
+-- 该锁的释放频道 lock:released:{key}
+-- local channel = KEYS[2]
 
 -- 当前线程标识
 -- local threadId = ARGV[1]
@@ -9,7 +11,9 @@ local id = redis.call("get", KEYS[1])
 
 -- 比较线程标识与锁中的标识是否一致
 if id == ARGV[1] then
-    -- 一致则释放锁 del key
-    return redis.call("del", KEYS[1])
+    -- 一致则释放锁 del key，并通知等待方 publish channel key
+    redis.call("del", KEYS[1])
+    redis.call("publish", KEYS[2], KEYS[1])
+    return 1
 end
-return 0
\ No newline at end of file
+return 0
@@ -0,0 +1,20 @@
+-- 续期workerId租约，并记录该workerId已经使用到的时间戳
+-- 1.参数列表
+-- 1.1 租约key idworker:worker:{workerId}
+local leaseKey = KEYS[1]
+-- 1.2 时间戳key idworker:last:{workerId}，不过期，新的持有者从该时间戳之后开始生成id
+local lastKey = KEYS[2]
+-- 1.3 持有者标识
+local owner = ARGV[1]
+-- 1.4 租期（秒）
+local ttl = ARGV[2]
+-- 1.5 已经使用到的时间戳
+local last = ARGV[3]
+
+-- 2.租约仍属于自己时才续期，否则返回0
+if (redis.call('get', leaseKey) ~= owner) then
+    return 0
+end
+redis.call('expire', leaseKey, ttl)
+redis.call('set', lastKey, last)
+return 1
@@ -16,6 +16,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -23,6 +25,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -73,6 +76,25 @@ class HmDianPingApplicationTests {
         System.out.println("time = " + (end - begin));
     }
 
+    @Test
+    void testIdWorkerUnique() throws InterruptedException {
+        // 并发生成的id不重复，吞吐量见benchmark模块的IdWorkerBenchmark
+        CountDownLatch latch = new CountDownLatch(300);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+
+        Runnable task = () -> {
+            for (int i = 0; i < 100; i++) {
+                ids.add(redisIdWorker.nextId("order:"));
+            }
+            latch.countDown();
+        };
+        for (int i = 0; i < 300; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        assertEquals(300 * 100, ids.size());
+    }
+
     @Test
     void loadShopData() {
         // 1.查询店铺信息
@@ -0,0 +1,140 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillOrderJournal;
+import com.hmdp.utils.SeckillOrderMetrics;
+import com.hmdp.utils.SeckillOrderResults;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.connection.stream.StringRecord;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_JOURNAL_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * 数据库不可用时订单写入本地日志、不转入死信队列：数据源已经关闭，事务管理器开启事务时抛出CannotCreateTransactionException
+ */
+class VoucherOrderSpillTests {
+
+    @TempDir
+    Path dir;
+
+    private HikariDataSource dataSource;
+    private SeckillOrderJournal journal;
+    private StringRedisTemplate stringRedisTemplate;
+    private SetOperations<String, String> journaled;
+    private SeckillOrderResults seckillOrderResults;
+    private VoucherOrderServiceImpl voucherOrderService;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() throws IOException {
+        // 1.停止数据源，事务中的代码不会执行
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl("jdbc:mysql://127.0.0.1:3306/hmdp");
+        dataSource.close();
+        TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        IVoucherOrderService proxy = mock(IVoucherOrderService.class);
+        when(proxy.createVoucherOrder(any())).thenAnswer(invocation -> transactionTemplate.execute(status -> true));
+        doAnswer(invocation -> transactionTemplate.execute(status -> null)).when(proxy).createVoucherOrders(anyList());
+
+        // 2.开启本地订单日志
+        journal = new SeckillOrderJournal(dir.resolve("seckill-order.journal").toString(), 100);
+        journal.init();
+
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        journaled = mock(SetOperations.class);
+        when(stringRedisTemplate.opsForSet()).thenReturn(journaled);
+        seckillOrderResults = mock(SeckillOrderResults.class);
+        voucherOrderService = new VoucherOrderServiceImpl(proxy, stringRedisTemplate,
+                seckillOrderResults, new SeckillOrderMetrics(), journal);
+    }
+
+    @AfterEach
+    void tearDown() {
+        journal.destroy();
+    }
+
+    @Test
+    void testBatchSpilledWhenDataSourceStopped() {
+        // 组提交开启事务失败，整批写入日志
+        List<MapRecord<String, String, String>> records = records(3);
+        voucherOrderService.handleRecords(records);
+        assertJournaled(records);
+    }
+
+    @Test
+    void testSingleOrderSpilledWhenDataSourceStopped() {
+        // 只有一条时不走组提交，逐条下单失败后写入日志
+        List<MapRecord<String, String, String>> records = records(1);
+        voucherOrderService.handleRecords(records);
+        assertJournaled(records);
+    }
+
+    @Test
+    void testLastDeliveryKeptPendingWhenDataSourceStopped() {
+        // 投递次数达到上限时数据库不可用：不转入死信队列、不ACK、不通知失败，留在pending-list中
+        VoucherOrderServiceImpl.PendingOrderRecovery recovery = voucherOrderService.new PendingOrderRecovery("test-recovery");
+        StringRecord record = StreamRecords.newRecord().in("stream.orders:0").withId(RecordId.of("1-0"))
+                .ofStrings(records(1).get(0).getValue());
+
+        recovery.handleLastDelivery(record);
+
+        assertTrue(mockingDetails(stringRedisTemplate).getInvocations().isEmpty());
+        verifyNoInteractions(seckillOrderResults);
+    }
+
+    private void assertJournaled(List<MapRecord<String, String, String>> records) {
+        // 1.所有订单都在日志中
+        assertEquals(records.size(), journal.size());
+        List<String> expected = records.stream().map(record -> record.getValue().get("id")).collect(Collectors.toList());
+        List<String> journaled = journal.peek(records.size()).stream()
+                .map(voucherOrder -> voucherOrder.getId().toString()).collect(Collectors.toList());
+        assertEquals(expected, journaled);
+        // 2.登记到日志中的订单集合，超时取消任务不会把它们当成丢失的订单
+        verify(this.journaled).add(SECKILL_JOURNAL_KEY, expected.toArray(new String[0]));
+        // 3.写入日志后ACK（一个分片一次ACK_DEL_SCRIPT）
+        long acks = mockingDetails(stringRedisTemplate).getInvocations().stream()
+                .filter(invocation -> invocation.getMethod().getName().equals("execute")).count();
+        assertEquals(1, acks);
+    }
+
+    private static List<MapRecord<String, String, String>> records(int n) {
+        List<MapRecord<String, String, String>> records = new ArrayList<>(n);
+        for (int i = 1; i <= n; i++) {
+            Map<String, String> values = new HashMap<>();
+            values.put("id", String.valueOf(1000 + i));
+            values.put("userId", String.valueOf(i));
+            values.put("voucherId", "10");
+            records.add(StreamRecords.newRecord().in("stream.orders:0").withId(RecordId.of(i + "-0")).ofMap(values));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,113 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.User;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Map;
+import java.util.StringJoiner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 二进制缓存编解码：往返一致，其他版本的数据按未命中处理，可以读取已有的JSON缓存
+ */
+class BinaryCacheCodecTests {
+
+    /**
+     * 每个VERSION对应的实体字段，字段增删改后编解码的字段顺序随之修改，并升级VERSION、在这里登记新版本的字段
+     */
+    private static final Map<Byte, String> FIELDS = Collections.singletonMap((byte) 1, ""
+            + "Shop[id:Long,name:String,typeId:Long,images:String,area:String,address:String,x:Double,y:Double,"
+            + "avgPrice:Long,sold:Integer,comments:Integer,score:Integer,openHours:String,createTime:LocalDateTime,"
+            + "updateTime:LocalDateTime,distance:Double]"
+            + "Blog[id:Long,shopId:Long,userId:Long,icon:String,name:String,isLike:Boolean,title:String,images:String,"
+            + "content:String,liked:Integer,comments:Integer,createTime:LocalDateTime,updateTime:LocalDateTime]"
+            + "User[id:Long,phone:String,password:String,nickName:String,icon:String,createTime:LocalDateTime,"
+            + "updateTime:LocalDateTime]"
+            + "RedisData[expireTime:LocalDateTime,data:Object]");
+
+    private final BinaryCacheCodec codec = new BinaryCacheCodec(new JsonCacheCodec());
+
+    @Test
+    void testShopRoundTrip() {
+        // 包含null字段、负数、非ASCII字符和纳秒
+        Shop shop = new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setArea("大关")
+                .setX(120.149192)
+                .setY(-30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(-1)
+                .setScore(37)
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39, 123456789));
+        assertEquals(shop, codec.decode(codec.encode(shop), Shop.class));
+    }
+
+    @Test
+    void testRedisDataRoundTrip() {
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.of(2030, 1, 1, 0, 0, 30));
+        redisData.setData(new User().setId(1010L).setPhone("13686869696").setNickName("小鱼同学"));
+
+        RedisData decoded = codec.decodeWithExpire(codec.encode(redisData), User.class);
+
+        assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+        assertEquals(redisData.getData(), decoded.getData());
+    }
+
+    @Test
+    void testOtherVersionIsMiss() {
+        // 第二个字节是版本号，读到其他版本写入的数据时返回null，由数据库重新加载
+        byte[] bytes = codec.encode(new Shop().setId(1L));
+        bytes[1]++;
+        assertNull(codec.decode(bytes, Shop.class));
+        assertNull(codec.decodeWithExpire(bytes, Shop.class));
+    }
+
+    @Test
+    void testReadsExistingJson() {
+        // 切换编码前写入的JSON缓存仍然可以读取
+        Shop shop = new Shop().setId(2L).setName("蔡馬洪涛烤肉").setSold(2160);
+        byte[] json = JSONUtil.toJsonStr(shop).getBytes(StandardCharsets.UTF_8);
+        assertEquals(shop, codec.decode(json, Shop.class));
+    }
+
+    @Test
+    void testCorruptJsonIsMiss() {
+        // 损坏的JSON按未命中处理，不抛出异常
+        byte[] bytes = "{\"id\":".getBytes(StandardCharsets.UTF_8);
+        assertNull(codec.decode(bytes, Shop.class));
+        assertNull(codec.decodeWithExpire(bytes, Shop.class));
+        // 合法的JSON但不是RedisData
+        assertNull(codec.decodeWithExpire("[1,2]".getBytes(StandardCharsets.UTF_8), Shop.class));
+    }
+
+    @Test
+    void testFieldsMatchVersion() {
+        // 实体字段变化而VERSION没有升级时，旧版本写入的缓存会按新的字段顺序错误解码
+        assertEquals(FIELDS.get(BinaryCacheCodec.VERSION), fields(Shop.class) + fields(Blog.class)
+                + fields(User.class) + fields(RedisData.class), "实体字段变化后需要修改编解码的字段顺序并升级VERSION");
+    }
+
+    private static String fields(Class<?> type) {
+        StringJoiner joiner = new StringJoiner(",", type.getSimpleName() + "[", "]");
+        for (Field field : type.getDeclaredFields()) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+                joiner.add(field.getName() + ":" + field.getType().getSimpleName());
+            }
+        }
+        return joiner.toString();
+    }
+}
@@ -0,0 +1,68 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 本地按key互斥锁：同一个key互斥，没有线程持有或等待的key从map中移除
+ */
+class LocalKeyedLockTests {
+
+    private final LocalKeyedLock lock = new LocalKeyedLock();
+
+    @Test
+    void testKeyRemovedAfterUnlock() {
+        assertTrue(lock.tryLock("a"));
+        assertTrue(lock.tryLock("b"), "不同的key互不影响");
+        assertEquals(2, lock.size());
+
+        lock.unlock("a");
+        lock.unlock("b");
+        assertEquals(0, lock.size());
+    }
+
+    @Test
+    void testFailedTryLockReleasesReference() throws InterruptedException {
+        assertTrue(lock.tryLock("a"));
+        // 1.不等待和等待超时的失败都不能留下引用计数
+        assertFalse(lock.tryLock("a"));
+        assertFalse(lock.tryLock("a", 10, TimeUnit.MILLISECONDS));
+        assertEquals(1, lock.size());
+
+        // 2.持有者释放后key被移除
+        lock.unlock("a");
+        assertEquals(0, lock.size());
+    }
+
+    @Test
+    void testWaiterKeepsKeyUntilUnlock() throws Exception {
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        try {
+            assertTrue(lock.tryLock("a"));
+            Future<Boolean> waiter = es.submit(() -> lock.tryLock("a", 5, TimeUnit.SECONDS));
+            Thread.sleep(100);
+
+            // 1.持有者释放后，正在等待的线程拿到同一个许可，key不能被移除
+            lock.unlock("a");
+            assertTrue(waiter.get());
+            assertEquals(1, lock.size());
+
+            // 2.允许由其他线程释放（如缓存重建在线程池中完成）
+            lock.unlock("a");
+            assertEquals(0, lock.size());
+            assertTrue(lock.tryLock("a"));
+            es.submit(() -> lock.unlock("a")).get();
+            assertEquals(0, lock.size());
+        } finally {
+            es.shutdownNow();
+        }
+    }
+}
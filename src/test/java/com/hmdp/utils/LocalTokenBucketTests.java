@@ -0,0 +1,60 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 本地令牌桶：桶满时允许burst个突发请求，之后按速率生成令牌
+ */
+class LocalTokenBucketTests {
+
+    @Test
+    void testBurstThenRejected() {
+        // 速率很低，测试期间不会生成新的令牌
+        LocalTokenBucket bucket = new LocalTokenBucket(1, 5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire(), "第" + (i + 1) + "个突发请求");
+        }
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    void testRefillAfterInterval() throws InterruptedException {
+        // 每100毫秒一个令牌，用完后等待两个间隔至少能再获取一个
+        LocalTokenBucket bucket = new LocalTokenBucket(10, 1);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        Thread.sleep(200);
+        assertTrue(bucket.tryAcquire());
+    }
+
+    @Test
+    void testConcurrentAcquireNeverExceedsBurst() throws InterruptedException {
+        // 多线程同时获取，CAS保证成功次数不超过桶容量（速率很低，测试期间不会生成新的令牌）
+        LocalTokenBucket bucket = new LocalTokenBucket(1, 100);
+        AtomicInteger acquired = new AtomicInteger();
+        ExecutorService es = Executors.newFixedThreadPool(8);
+        CountDownLatch latch = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            es.submit(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    if (bucket.tryAcquire()) {
+                        acquired.incrementAndGet();
+                    }
+                }
+                latch.countDown();
+            });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        es.shutdown();
+        assertTrue(acquired.get() >= 100 && acquired.get() <= 101, "acquired=" + acquired.get());
+    }
+}
@@ -0,0 +1,59 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * snowflake模式的时钟回拨：回拨不超过max-backward时沿用上一次的时间戳，id仍然递增；超过后拒绝生成id
+ * <p>
+ * 不修改系统时钟，而是让租约中上一次使用的时间戳领先当前时间，效果与时钟回拨相同
+ */
+class RedisIdWorkerClockTests {
+
+    private static final long WORKER_ID = 7;
+    private static final int MAX_BACKWARD_SECONDS = 5;
+
+    private final RedisIdWorker clock = new RedisIdWorker();    // 只用来读取当前时间戳
+
+    @Test
+    void testSmallBackwardKeepsIdsIncreasing() {
+        // 时钟回拨3秒
+        long last = now() + 3;
+        RedisIdWorker redisIdWorker = snowflake(last, System.currentTimeMillis() + 60_000);
+
+        long previous = 0;
+        for (int i = 0; i < 1000; i++) {
+            long id = redisIdWorker.nextId("order");
+            assertTrue(id > previous, "id必须递增");
+            // 时间戳不早于回拨前，workerId不变
+            assertTrue(id >>> 32 > last);
+            assertEquals(WORKER_ID, id >>> 22 & 1023);
+            previous = id;
+        }
+    }
+
+    @Test
+    void testLargeBackwardRejected() {
+        // 时钟回拨超过max-backward
+        RedisIdWorker redisIdWorker = snowflake(now() + MAX_BACKWARD_SECONDS + 5, System.currentTimeMillis() + 60_000);
+        assertThrows(IllegalStateException.class, () -> redisIdWorker.nextId("order"));
+    }
+
+    @Test
+    void testExpiredLeaseRejected() {
+        // 租约过期后workerId可能已经被其他节点使用
+        RedisIdWorker redisIdWorker = snowflake(now(), System.currentTimeMillis() - 1);
+        assertThrows(IllegalStateException.class, () -> redisIdWorker.nextId("order"));
+    }
+
+    private long now() {
+        return clock.currentTimestamp();
+    }
+
+    private static RedisIdWorker snowflake(long lastTimestamp, long deadline) {
+        return new RedisIdWorker(MAX_BACKWARD_SECONDS, new RedisIdWorker.WorkerLease(WORKER_ID, lastTimestamp, deadline));
+    }
+}
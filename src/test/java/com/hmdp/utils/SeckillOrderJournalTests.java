@@ -0,0 +1,110 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 本地订单日志：追加、读取、确认，全部回放后读写指针归零复用空间，重启后恢复未回放的订单
+ */
+class SeckillOrderJournalTests {
+
+    private static final int CAPACITY = 4;
+
+    @TempDir
+    Path dir;
+
+    private SeckillOrderJournal journal;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        journal = open();
+    }
+
+    @AfterEach
+    void tearDown() {
+        journal.destroy();
+    }
+
+    @Test
+    void testAppendPeekCommit() {
+        assertTrue(journal.append(orders(1, 3)));
+        assertEquals(3, journal.size());
+
+        // 1.peek不移动读指针
+        assertEquals(ids(1, 2), ids(journal.peek(2)));
+        assertEquals(ids(1, 2), ids(journal.peek(2)));
+        assertEquals(orders(1, 3), journal.peek(10));
+
+        // 2.确认一部分后从下一条开始读
+        journal.commit(2);
+        assertEquals(1, journal.size());
+        assertTrue(journal.isActive());
+        assertEquals(ids(3, 3), ids(journal.peek(10)));
+    }
+
+    @Test
+    void testResetAfterFullCommit() {
+        // 1.写满后空间不足，调用方不能ACK
+        assertTrue(journal.append(orders(1, CAPACITY)));
+        assertFalse(journal.append(orders(5, 5)));
+
+        // 2.全部回放后读写指针归零，空间可以复用
+        journal.commit(CAPACITY);
+        assertEquals(0, journal.size());
+        assertFalse(journal.isActive());
+        assertTrue(journal.peek(10).isEmpty());
+        assertTrue(journal.append(orders(11, 10 + CAPACITY)));
+        assertEquals(ids(11, 10 + CAPACITY), ids(journal.peek(10)));
+    }
+
+    @Test
+    void testRecoverAfterRestart() throws IOException {
+        journal.append(orders(1, 3));
+        journal.commit(1);
+        journal.destroy();
+
+        // 重新打开同一个文件，从上次的读写位置继续回放
+        journal = open();
+        assertEquals(2, journal.size());
+        assertEquals(orders(2, 3), journal.peek(10));
+    }
+
+    private SeckillOrderJournal open() throws IOException {
+        SeckillOrderJournal journal = new SeckillOrderJournal(dir.resolve("seckill-order.journal").toString(), CAPACITY);
+        journal.init();
+        return journal;
+    }
+
+    private static List<VoucherOrder> orders(long from, long to) {
+        List<VoucherOrder> voucherOrders = new ArrayList<>();
+        for (long id = from; id <= to; id++) {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(id);
+            voucherOrder.setUserId(100 + id);
+            voucherOrder.setVoucherId(10L);
+            voucherOrders.add(voucherOrder);
+        }
+        return voucherOrders;
+    }
+
+    private static List<Long> ids(long from, long to) {
+        return ids(orders(from, to));
+    }
+
+    private static List<Long> ids(List<VoucherOrder> voucherOrders) {
+        return voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+    }
+}